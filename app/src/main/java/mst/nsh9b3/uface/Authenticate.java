@@ -75,12 +75,10 @@ public class Authenticate extends IntentService
         {
 
             Log.i(TAG, "Generating Histogram");
-            // Use LBP algorithm to create feature vector of user's face
-            JavaLBP LBP = new JavaLBP(faceToAuthenticate.getNativeObjAddr());
-
-            Log.i(TAG, "Getting Histogram");
-            // Get the generated histogram
-            byte[][] concatHist = LBP.getHistogram();
+            // Use LBP algorithm to create feature vector of user's face (one thread per core)
+            LBPConfig config = new LBPConfig();
+            config.setParallelism(Runtime.getRuntime().availableProcessors());
+            JavaLBP LBP = new JavaLBP(faceToAuthenticate.getNativeObjAddr(), config);
 
             Log.i(TAG, "Creating TimestampedID");
             // Get the timestampedID
@@ -97,11 +95,32 @@ public class Authenticate extends IntentService
             String plaintextFilename = null;
 
             String readablePlaintextFilename = null;
+
+            // Randomness precomputed while the picture was taken, saved when TakePicture closed
+            RandomizerPool randomizerPool = null;
             try
             {
+                // Create a cryptosystem for encryption
+                PaillierEncryption paillerCryptosystem = PaillierEncryption.fromPublicKey(publicKey);
+
+                // Reload the values saved for this key (a new key starts an empty pool)
+                randomizerPool = RandomizerPool.start(getFilesDir(), paillerCryptosystem, RandomizerPool.DEFAULT_CAPACITY);
+                paillerCryptosystem.setRandomizerPool(randomizerPool);
+
+                Log.i(TAG, "Getting Histogram");
+                // Pack the histogram into plaintexts sized for the key that was downloaded
+                int plaintextBits = paillerCryptosystem.getPlaintextBits();
+                BitPacker packer = new BitPacker(plaintextBits, LBP.getBitsPerBin(), config.getHeadroomBits());
+                BigInteger[] plaintexts = packer.pack(LBP.getFeatures());
+                byte[][] concatHist = packer.packBytes(LBP.getFeatures(), (plaintextBits + 8) / 8);
+
                 Log.i(TAG, "Encrypting");
                 // Encrypt the the values using the public key
-                encryptedFilename = encryptHistogram(publicKey, timestampedID, concatHist);
+                encryptedFilename = encryptHistogram(paillerCryptosystem, timestampedID, plaintexts);
+
+                // Save what is left of the pool for the next authentication
+                randomizerPool.stop();
+                randomizerPool = null;
 
                 // Send the file to the server for further processing
                 Log.i(TAG, "Transferring file to Server");
@@ -132,7 +151,7 @@ public class Authenticate extends IntentService
                     });
                 }
 
-                readablePlaintextFilename = createPlaintextFileReadable(timestampedID, concatHist);
+                readablePlaintextFilename = createPlaintextFileReadable(timestampedID, plaintexts);
                 if (ftp.sendFileToServer(readablePlaintextFilename))
                 {
                     Log.i(TAG, "Transferred file to Server");
@@ -149,6 +168,11 @@ public class Authenticate extends IntentService
             } catch (Exception e)
             {
                 Log.e(TAG, "Error: " + e);
+            } finally
+            {
+                // Never leave the background thread running with unsaved values if encrypting failed
+                if (randomizerPool != null)
+                    randomizerPool.stop();
             }
 //            ftp.ftpDisconnect();
         }
@@ -207,7 +231,7 @@ public class Authenticate extends IntentService
     private String encryptHistogram(String[] publicKey, String[] timeStampedID, String[][] histogram) throws Exception
     {
         // Create a cryptosystem for encryption
-        PaillierEncryption paillerCryptosystem = new PaillierEncryption(publicKey[0], publicKey[1], publicKey[2]);
+        PaillierEncryption paillerCryptosystem = PaillierEncryption.fromPublicKey(publicKey);
 
         // m = message, c = ciphertext
         BigInteger m;
@@ -278,7 +302,7 @@ public class Authenticate extends IntentService
     private String encryptHistogram(String[] publicKey, String timeStampedID, byte[] histogram) throws Exception
     {
         // Create a cryptosystem for encryption
-        PaillierEncryption paillerCryptosystem = new PaillierEncryption(publicKey[0], publicKey[1], publicKey[2]);
+        PaillierEncryption paillerCryptosystem = PaillierEncryption.fromPublicKey(publicKey);
 
         // m = message, c = ciphertext
         BigInteger m;
@@ -341,29 +365,18 @@ public class Authenticate extends IntentService
         return outputFile.getAbsolutePath();
     }
 
-    private String encryptHistogram(String[] publicKey, String timeStampedID, byte[][] histogram) throws Exception
+    private String encryptHistogram(PaillierEncryption paillerCryptosystem, String timeStampedID, BigInteger[] histogram) throws Exception
     {
-        // Create a cryptosystem for encryption
-        PaillierEncryption paillerCryptosystem = new PaillierEncryption(publicKey[0], publicKey[1], publicKey[2]);
-
         // m = message, c = ciphertext
-        BigInteger m;
-        BigInteger[] c = new BigInteger[histogram.length + 1];
+        BigInteger[] m = new BigInteger[histogram.length + 1];
 
-        int index = 0;
+        // The timestampedID goes first, followed by each value in the histogram
+        m[0] = new BigInteger(timeStampedID);
+        System.arraycopy(histogram, 0, m, 1, histogram.length);
 
-        Log.i(TAG, "Encrypting the timestampedID");
-        // Encrypt the timestampedID values first
-        m = new BigInteger(timeStampedID);
-        c[index++] = paillerCryptosystem.Encryption(m);
-
-        Log.i(TAG, "Encrypting the histogram");
-        // Encrypt each value in the histogram
-        for (int i = 0; i < histogram.length; i++)
-        {
-            m = new BigInteger(histogram[i]);
-            c[index++] = paillerCryptosystem.Encryption(m);
-        }
+        Log.i(TAG, "Encrypting the timestampedID and histogram");
+        // Encrypt every value at once, one thread per core
+        BigInteger[] c = paillerCryptosystem.encryptAll(m);
 
         // Write the ciphertext to a File
         File outputDir = this.getExternalCacheDir(); // context being the Activity pointer
@@ -543,7 +556,7 @@ public class Authenticate extends IntentService
         return outputFile.getAbsolutePath();
     }
 
-    private String createPlaintextFileReadable(String timestampedID, byte[][] histogram)
+    private String createPlaintextFileReadable(String timestampedID, BigInteger[] histogram)
     {
         // Write the plaintet to a File
         File outputDir = this.getExternalCacheDir(); // context being the Activity pointer
@@ -565,8 +578,7 @@ public class Authenticate extends IntentService
             writer.write(timestampedID + " ");
             for (int i = 0; i < histogram.length; i++)
             {
-                BigInteger m = new BigInteger(histogram[i]);
-                writer.write(m.toString() + " ");
+                writer.write(histogram[i].toString() + " ");
             }
         } catch (Exception e)
         {
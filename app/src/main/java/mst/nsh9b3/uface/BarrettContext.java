@@ -0,0 +1,99 @@
+package mst.nsh9b3.uface;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+
+/**
+ * Modular multiplication for one modulus (such as n^2) using Barrett reduction: the quotient of a
+ * product is estimated with two multiplications and shifts instead of a division, which is a few
+ * times faster than BigInteger.mod() at Paillier sizes.
+ *
+ * Contexts are built once for each modulus and shared through get(). They hold no mutable state so
+ * any number of threads can use one at the same time.
+ */
+public class BarrettContext
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::BarrettContext";
+
+    // Contexts that have already been built, keyed by modulus
+    private static final HashMap<BigInteger, BarrettContext> contexts = new HashMap<>();
+
+    private final BigInteger modulus;
+
+    // k = bits in the modulus, mu = floor(4^k / modulus)
+    private final int k;
+    private final BigInteger mu;
+
+    /**
+     * @param modulus a modulus greater than 1
+     */
+    public BarrettContext(BigInteger modulus)
+    {
+        if (modulus.compareTo(BigInteger.ONE) <= 0)
+            throw new IllegalArgumentException("BarrettContext: modulus must be greater than 1");
+
+        this.modulus = modulus;
+        this.k = modulus.bitLength();
+        this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(modulus);
+    }
+
+    /**
+     * Gets the shared context for a modulus, building it the first time
+     * @param modulus a modulus greater than 1
+     * @return BarrettContext the context
+     */
+    public static synchronized BarrettContext get(BigInteger modulus)
+    {
+        BarrettContext context = contexts.get(modulus);
+        if (context == null)
+        {
+            context = new BarrettContext(modulus);
+            contexts.put(modulus, context);
+        }
+        return context;
+    }
+
+    /**
+     * Removes the shared context of a modulus, so a key that is no longer used can be garbage
+     * collected. Contexts already handed out keep working.
+     * @param modulus the modulus of the context to drop
+     */
+    public static synchronized void evict(BigInteger modulus)
+    {
+        contexts.remove(modulus);
+    }
+
+    public BigInteger getModulus()
+    {
+        return modulus;
+    }
+
+    /**
+     * @param a value below the modulus
+     * @param b value below the modulus
+     * @return BigInteger a * b mod modulus
+     */
+    public BigInteger multiply(BigInteger a, BigInteger b)
+    {
+        BigInteger x = a.multiply(b);
+
+        // q is floor(x / modulus) or at most 2 less
+        BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+        BigInteger r = x.subtract(q.multiply(modulus));
+        while (r.compareTo(modulus) >= 0)
+        {
+            r = r.subtract(modulus);
+        }
+        return r;
+    }
+
+    /**
+     * @param a value below the modulus
+     * @return BigInteger a^2 mod modulus
+     */
+    public BigInteger square(BigInteger a)
+    {
+        return multiply(a, a);
+    }
+}
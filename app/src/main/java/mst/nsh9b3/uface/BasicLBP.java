@@ -0,0 +1,128 @@
+package mst.nsh9b3.uface;
+
+/**
+ * The original LBP operator: each pixel is compared with the 8 pixels touching it.
+ * The top left neighbor is the highest bit and the bits continue clockwise.
+ * Rows are processed 8 pixels at a time by packing them into a long and comparing every byte
+ * at once (SWAR), which avoids a data dependent branch for every neighbor.
+ */
+public class BasicLBP extends LBPOperator
+{
+    @Override
+    public int getNeighbors()
+    {
+        return 8;
+    }
+
+    @Override
+    public int getBorder()
+    {
+        return 1;
+    }
+
+    // Highest bit of every byte in a long
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    @Override
+    public void computeRow(byte[] pixels, int width, int row, int startCol, int endCol, int[] codes)
+    {
+        int count = endCol - startCol;
+        int center = row * width + startCol;
+        int i = 0;
+
+        // 8 pixels at a time: every neighbor comparison is done for all 8 pixels at once
+        for (; i + 8 <= count; i += 8, center += 8)
+        {
+            long above = load(pixels, center - width);
+            long middle = load(pixels, center);
+            long below = load(pixels, center + width);
+
+            // Shift each row by one pixel to line up the left and right neighbors.
+            // Byte 0 holds the leftmost pixel so shifting left moves every pixel one column right.
+            long value = greaterOrEqual(shiftRight(above, pixels[center - width - 1]), middle) >>> 0
+                    | greaterOrEqual(above, middle) >>> 1
+                    | greaterOrEqual(shiftLeft(above, pixels[center - width + 8]), middle) >>> 2
+                    | greaterOrEqual(shiftLeft(middle, pixels[center + 8]), middle) >>> 3
+                    | greaterOrEqual(shiftLeft(below, pixels[center + width + 8]), middle) >>> 4
+                    | greaterOrEqual(below, middle) >>> 5
+                    | greaterOrEqual(shiftRight(below, pixels[center + width - 1]), middle) >>> 6
+                    | greaterOrEqual(shiftRight(middle, pixels[center - 1]), middle) >>> 7;
+
+            for (int k = 0; k < 8; k++)
+            {
+                codes[i + k] = (int) (value >>> (8 * k)) & 0xFF;
+            }
+        }
+
+        // The pixels left over at the end of the row
+        for (; i < count; i++, center++)
+        {
+            int centerValue = pixels[center] & 0xFF;
+
+            int value = 0;
+            if ((pixels[center - width - 1] & 0xFF) >= centerValue)
+                value |= 1 << 7;
+            if ((pixels[center - width] & 0xFF) >= centerValue)
+                value |= 1 << 6;
+            if ((pixels[center - width + 1] & 0xFF) >= centerValue)
+                value |= 1 << 5;
+            if ((pixels[center + 1] & 0xFF) >= centerValue)
+                value |= 1 << 4;
+            if ((pixels[center + width + 1] & 0xFF) >= centerValue)
+                value |= 1 << 3;
+            if ((pixels[center + width] & 0xFF) >= centerValue)
+                value |= 1 << 2;
+            if ((pixels[center + width - 1] & 0xFF) >= centerValue)
+                value |= 1 << 1;
+            if ((pixels[center - 1] & 0xFF) >= centerValue)
+                value |= 1;
+
+            codes[i] = value;
+        }
+    }
+
+    /**
+     * Reads 8 pixels into a long, the first pixel in the lowest byte
+     */
+    private static long load(byte[] pixels, int offset)
+    {
+        return (pixels[offset] & 0xFFL)
+                | (pixels[offset + 1] & 0xFFL) << 8
+                | (pixels[offset + 2] & 0xFFL) << 16
+                | (pixels[offset + 3] & 0xFFL) << 24
+                | (pixels[offset + 4] & 0xFFL) << 32
+                | (pixels[offset + 5] & 0xFFL) << 40
+                | (pixels[offset + 6] & 0xFFL) << 48
+                | (pixels[offset + 7] & 0xFFL) << 56;
+    }
+
+    /**
+     * Moves every pixel one column to the right and puts the pixel before them in the first byte
+     */
+    private static long shiftRight(long pixels, byte before)
+    {
+        return pixels << 8 | (before & 0xFFL);
+    }
+
+    /**
+     * Moves every pixel one column to the left and puts the pixel after them in the last byte
+     */
+    private static long shiftLeft(long pixels, byte after)
+    {
+        return pixels >>> 8 | (after & 0xFFL) << 56;
+    }
+
+    /**
+     * Compares 8 unsigned bytes at once without branches
+     * @return long with the highest bit of each byte set where a >= b and every other bit clear
+     */
+    private static long greaterOrEqual(long a, long b)
+    {
+        // Subtract the low 7 bits of each byte with the high bit set so no borrow crosses bytes.
+        // The high bit of each result is set where the low 7 bits of a >= those of b.
+        long low = (a | HIGH_BITS) - (b & ~HIGH_BITS);
+
+        // Where the high bits differ a >= b only if a has the high bit, otherwise the low bits decide
+        return ((a & ~b) | (~(a ^ b) & low)) & HIGH_BITS;
+    }
+}
@@ -0,0 +1,272 @@
+package mst.nsh9b3.uface;
+
+import java.math.BigInteger;
+
+/**
+ * Packs many small values into the plaintexts given to PaillierEncryption so less encryptions occur.
+ * Each plaintext holds plaintextBits / slotBits slots. The first value of a plaintext goes in its
+ * most significant slot and the last value ends at bit 0, so any bits left over are leading zeros.
+ * Values are written into 64-bit words, touching at most 2 words per value, so packing takes time
+ * linear in the number of words rather than bits.
+ *
+ * Each slot can reserve headroom bits above the value. A server can then multiply the ciphertexts of
+ * up to 2^headroom packed templates together (adding every slot at once with one modular multiplication
+ * per ciphertext), or raise a ciphertext to a small power, without one slot carrying into the next.
+ * unpack() reads the slots back out of a decrypted result.
+ */
+public class BitPacker
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::BitPacker";
+
+    // Largest number of bits in a plaintext (must stay below the bit length of the modulus)
+    private final int plaintextBits;
+
+    // Number of bits each value must fit in
+    private final int valueBits;
+
+    // Number of bits used by each value plus its headroom
+    private final int slotBits;
+
+    // Number of values in each plaintext
+    private final int slotsPerPlaintext;
+
+    // Number of 64-bit words in each plaintext
+    private final int wordsPerPlaintext;
+
+    /**
+     * @param plaintextBits number of bits available in each plaintext, such as
+     *                      PaillierEncryption.getPlaintextBits()
+     * @param slotBits number of bits used by each value (1 to 32)
+     */
+    public BitPacker(int plaintextBits, int slotBits)
+    {
+        this(plaintextBits, slotBits, 0);
+    }
+
+    /**
+     * @param plaintextBits number of bits available in each plaintext, such as
+     *                      PaillierEncryption.getPlaintextBits()
+     * @param valueBits number of bits each value must fit in (1 to 32)
+     * @param headroomBits number of zero bits kept above every value, see headroomFor()
+     */
+    public BitPacker(int plaintextBits, int valueBits, int headroomBits)
+    {
+        if (valueBits < 1 || valueBits > 32)
+            throw new IllegalArgumentException("BitPacker: valueBits must be between 1 and 32");
+        if (headroomBits < 0 || valueBits + headroomBits > 63)
+            throw new IllegalArgumentException("BitPacker: headroomBits must be between 0 and " + (63 - valueBits));
+        if (plaintextBits < valueBits + headroomBits)
+            throw new IllegalArgumentException("BitPacker: a plaintext must hold at least one slot");
+
+        this.plaintextBits = plaintextBits;
+        this.valueBits = valueBits;
+        this.slotBits = valueBits + headroomBits;
+        this.slotsPerPlaintext = plaintextBits / slotBits;
+        this.wordsPerPlaintext = (slotsPerPlaintext * slotBits + 63) / 64;
+    }
+
+    public int getPlaintextBits()
+    {
+        return plaintextBits;
+    }
+
+    /**
+     * Finds the headroom needed for slot-wise homomorphic arithmetic. Summing k templates needs a
+     * total weight of k; a weighted sum needs the sum of its (positive) weights.
+     * @param totalWeight the largest multiple of a single value any slot can end up holding
+     * @return int the number of headroom bits that keeps every slot from carrying into the next
+     */
+    public static int headroomFor(long totalWeight)
+    {
+        if (totalWeight < 1)
+            throw new IllegalArgumentException("BitPacker.headroomFor(long): totalWeight must be >= 1");
+        return 64 - Long.numberOfLeadingZeros(totalWeight - 1);
+    }
+
+    public int getValueBits()
+    {
+        return valueBits;
+    }
+
+    public int getSlotBits()
+    {
+        return slotBits;
+    }
+
+    public int getHeadroomBits()
+    {
+        return slotBits - valueBits;
+    }
+
+    public int getSlotsPerPlaintext()
+    {
+        return slotsPerPlaintext;
+    }
+
+    public int getWordsPerPlaintext()
+    {
+        return wordsPerPlaintext;
+    }
+
+    /**
+     * @param values number of values to pack
+     * @return int the number of plaintexts needed to hold them
+     */
+    public int getPlaintextCount(int values)
+    {
+        return (values + slotsPerPlaintext - 1) / slotsPerPlaintext;
+    }
+
+    /**
+     * Packs values into 64-bit words. Plaintext i uses words[i * getWordsPerPlaintext()] onwards,
+     * least significant word first.
+     * @param values the values to pack, each must fit in valueBits bits
+     * @param words receives the packed values, at least getPlaintextCount(values.length) *
+     *              getWordsPerPlaintext() long (cleared by this method)
+     */
+    public void packWords(int[] values, long[] words)
+    {
+        int used = getPlaintextCount(values.length) * wordsPerPlaintext;
+        for (int i = 0; i < used; i++)
+        {
+            words[i] = 0;
+        }
+
+        long mask = (1L << valueBits) - 1;
+        for (int i = 0; i < values.length; i++)
+        {
+            long value = values[i] & 0xFFFFFFFFL;
+            if (value > mask)
+                throw new IllegalArgumentException("BitPacker.packWords: value " + values[i] + " does not fit in " + valueBits + " bits");
+
+            int plaintext = i / slotsPerPlaintext;
+            int slot = i % slotsPerPlaintext;
+
+            // Bit position of the lowest bit of this slot
+            int bitPos = (slotsPerPlaintext - 1 - slot) * slotBits;
+            int word = plaintext * wordsPerPlaintext + (bitPos >>> 6);
+            int shift = bitPos & 63;
+
+            words[word] |= value << shift;
+            if (shift + slotBits > 64)
+                words[word + 1] |= value >>> (64 - shift);
+        }
+    }
+
+    /**
+     * Packs values into positive BigIntegers ready for encryption
+     * @param values the values to pack, each must fit in valueBits bits
+     * @return BigInteger[] one plaintext for every getSlotsPerPlaintext() values
+     */
+    public BigInteger[] pack(int[] values)
+    {
+        int count = getPlaintextCount(values.length);
+        long[] words = new long[count * wordsPerPlaintext];
+        packWords(values, words);
+
+        BigInteger[] plaintexts = new BigInteger[count];
+        byte[] magnitude = new byte[wordsPerPlaintext * 8];
+        for (int i = 0; i < count; i++)
+        {
+            toBytes(words, i * wordsPerPlaintext, magnitude, magnitude.length);
+            plaintexts[i] = new BigInteger(1, magnitude);
+        }
+
+        return plaintexts;
+    }
+
+    /**
+     * Packs values into big-endian byte arrays of a fixed length
+     * @param values the values to pack, each must fit in valueBits bits
+     * @param bytesPerPlaintext length of every array, large enough to hold plaintextBits bits
+     * @return byte[][] one array for every getSlotsPerPlaintext() values
+     */
+    public byte[][] packBytes(int[] values, int bytesPerPlaintext)
+    {
+        if (bytesPerPlaintext * 8 < slotsPerPlaintext * slotBits)
+            throw new IllegalArgumentException("BitPacker.packBytes: " + bytesPerPlaintext + " bytes cannot hold a plaintext");
+
+        int count = getPlaintextCount(values.length);
+        long[] words = new long[count * wordsPerPlaintext];
+        packWords(values, words);
+
+        byte[][] plaintexts = new byte[count][bytesPerPlaintext];
+        for (int i = 0; i < count; i++)
+        {
+            toBytes(words, i * wordsPerPlaintext, plaintexts[i], bytesPerPlaintext);
+        }
+
+        return plaintexts;
+    }
+
+    /**
+     * Reads every slot out of packed words. Slots hold whatever the homomorphic operations left in
+     * them, so they are returned in full (value and headroom bits).
+     * @param words the packed words, laid out as by packWords()
+     * @param values receives the slots, one for each value that was packed
+     */
+    public void unpackWords(long[] words, long[] values)
+    {
+        long mask = (1L << slotBits) - 1;
+        for (int i = 0; i < values.length; i++)
+        {
+            int plaintext = i / slotsPerPlaintext;
+            int slot = i % slotsPerPlaintext;
+
+            int bitPos = (slotsPerPlaintext - 1 - slot) * slotBits;
+            int word = plaintext * wordsPerPlaintext + (bitPos >>> 6);
+            int shift = bitPos & 63;
+
+            long value = words[word] >>> shift;
+            if (shift + slotBits > 64)
+                value |= words[word + 1] << (64 - shift);
+            values[i] = value & mask;
+        }
+    }
+
+    /**
+     * Reads every slot out of decrypted plaintexts, such as the sum of several packed templates
+     * @param plaintexts the decrypted plaintexts
+     * @param count number of values that were packed
+     * @return long[] the slots in the order the values were packed
+     */
+    public long[] unpack(BigInteger[] plaintexts, int count)
+    {
+        if (plaintexts.length < getPlaintextCount(count))
+            throw new IllegalArgumentException("BitPacker.unpack: " + count + " values need " + getPlaintextCount(count) + " plaintexts");
+
+        long[] words = new long[plaintexts.length * wordsPerPlaintext];
+        for (int i = 0; i < plaintexts.length; i++)
+        {
+            // Big-endian two's complement, least significant byte last
+            byte[] bytes = plaintexts[i].toByteArray();
+            int length = Math.min(bytes.length, wordsPerPlaintext * 8);
+            for (int k = 0; k < length; k++)
+            {
+                long b = bytes[bytes.length - 1 - k] & 0xFF;
+                words[i * wordsPerPlaintext + (k >>> 3)] |= b << ((k & 7) * 8);
+            }
+        }
+
+        long[] values = new long[count];
+        unpackWords(words, values);
+        return values;
+    }
+
+    /**
+     * Writes one plaintext's words into a big-endian byte array
+     * @param words the packed words
+     * @param offset index of the plaintext's least significant word
+     * @param bytes receives the plaintext, the last byte is the least significant
+     * @param length number of bytes to write
+     */
+    private void toBytes(long[] words, int offset, byte[] bytes, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            int word = i >>> 3;
+            bytes[length - 1 - i] = word < wordsPerPlaintext ? (byte) (words[offset + word] >>> ((i & 7) * 8)) : 0;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package mst.nsh9b3.uface;
+
+/**
+ * LBP(P,R) operator: each pixel is compared with P points spaced evenly on a circle of radius R.
+ * Points that do not land on a pixel are bilinearly interpolated from the 4 pixels around them.
+ * The positions and weights of every point are computed once in the constructor so the pixel
+ * loop only uses integer math. Point p sets bit p of the LBP value.
+ */
+public class CircularLBP extends LBPOperator
+{
+    // Fixed point scale of the interpolation weights
+    private static final int WEIGHT_BITS = 16;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    // Number of points on the circle
+    private final int neighbors;
+
+    // Radius of the circle
+    private final double radius;
+
+    // Pixels at each edge of the image without every point
+    private final int border;
+
+    // Top left pixel of the 4 pixels around each point, relative to the center pixel
+    private final int[] rowOffset;
+    private final int[] colOffset;
+
+    // Weights of the top left, top right, bottom left and bottom right pixels (sum to WEIGHT_ONE)
+    private final int[] topLeftWeight;
+    private final int[] topRightWeight;
+    private final int[] botLeftWeight;
+    private final int[] botRightWeight;
+
+    // True if the point lands on a pixel and needs no interpolation
+    private final boolean[] exact;
+
+    /**
+     * @param neighbors number of points on the circle (1 to 16)
+     * @param radius radius of the circle in pixels
+     */
+    public CircularLBP(int neighbors, double radius)
+    {
+        if (neighbors < 1 || neighbors > 16)
+            throw new IllegalArgumentException("CircularLBP(int, double): neighbors must be between 1 and 16");
+        if (radius <= 0)
+            throw new IllegalArgumentException("CircularLBP(int, double): radius must be > 0");
+
+        this.neighbors = neighbors;
+        this.radius = radius;
+        this.border = (int) Math.ceil(radius);
+
+        rowOffset = new int[neighbors];
+        colOffset = new int[neighbors];
+        topLeftWeight = new int[neighbors];
+        topRightWeight = new int[neighbors];
+        botLeftWeight = new int[neighbors];
+        botRightWeight = new int[neighbors];
+        exact = new boolean[neighbors];
+
+        for (int p = 0; p < neighbors; p++)
+        {
+            // Remove rounding error so points on the axes land exactly on a pixel
+            double y = snap(-radius * Math.sin(2 * Math.PI * p / neighbors));
+            double x = snap(radius * Math.cos(2 * Math.PI * p / neighbors));
+
+            int top = (int) Math.floor(y);
+            int left = (int) Math.floor(x);
+            double fy = y - top;
+            double fx = x - left;
+
+            rowOffset[p] = top;
+            colOffset[p] = left;
+            exact[p] = fy == 0 && fx == 0;
+
+            topRightWeight[p] = (int) Math.round((1 - fy) * fx * WEIGHT_ONE);
+            botLeftWeight[p] = (int) Math.round(fy * (1 - fx) * WEIGHT_ONE);
+            botRightWeight[p] = (int) Math.round(fy * fx * WEIGHT_ONE);
+            topLeftWeight[p] = WEIGHT_ONE - topRightWeight[p] - botLeftWeight[p] - botRightWeight[p];
+        }
+    }
+
+    private static double snap(double value)
+    {
+        double rounded = Math.rint(value);
+        return Math.abs(value - rounded) < 1e-9 ? rounded : value;
+    }
+
+    @Override
+    public int getNeighbors()
+    {
+        return neighbors;
+    }
+
+    @Override
+    public int getBorder()
+    {
+        return border;
+    }
+
+    public double getRadius()
+    {
+        return radius;
+    }
+
+    @Override
+    public void computeRow(byte[] pixels, int width, int row, int startCol, int endCol, int[] codes)
+    {
+        int count = endCol - startCol;
+        int first = row * width + startCol;
+
+        for (int i = 0; i < count; i++)
+        {
+            codes[i] = 0;
+        }
+
+        // Add one point at a time so each pass over the row uses the same offsets
+        for (int p = 0; p < neighbors; p++)
+        {
+            int bit = 1 << p;
+            int offset = rowOffset[p] * width + colOffset[p];
+
+            if (exact[p])
+            {
+                for (int i = 0, center = first; i < count; i++, center++)
+                {
+                    if ((pixels[center + offset] & 0xFF) >= (pixels[center] & 0xFF))
+                        codes[i] |= bit;
+                }
+            }
+            else
+            {
+                int w1 = topLeftWeight[p];
+                int w2 = topRightWeight[p];
+                int w3 = botLeftWeight[p];
+                int w4 = botRightWeight[p];
+
+                // Pixels with a weight of 0 may be outside of the image so they are never read
+                int right = w2 == 0 && w4 == 0 ? 0 : 1;
+                int below = w3 == 0 && w4 == 0 ? 0 : width;
+
+                for (int i = 0, center = first; i < count; i++, center++)
+                {
+                    int topLeft = center + offset;
+                    int value = w1 * (pixels[topLeft] & 0xFF)
+                            + w2 * (pixels[topLeft + right] & 0xFF)
+                            + w3 * (pixels[topLeft + below] & 0xFF)
+                            + w4 * (pixels[topLeft + below + right] & 0xFF);
+
+                    if (value >= (pixels[center] & 0xFF) << WEIGHT_BITS)
+                        codes[i] |= bit;
+                }
+            }
+        }
+    }
+}
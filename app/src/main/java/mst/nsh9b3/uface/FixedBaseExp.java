@@ -0,0 +1,262 @@
+package mst.nsh9b3.uface;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Raises one fixed base to many different exponents. The table holds base^(j * 2^(window * i)) for
+ * every window i of the exponent and every digit j, so base^x is the product of one table entry per
+ * non-zero window of x: no squarings, and about maxExponentBits / window multiplications.
+ * Each product is reduced with the BarrettContext of the modulus.
+ *
+ * Tables are built once for each base and modulus and shared through get(), or read back from a key
+ * file with read(). They are never modified after construction so any number of threads can use one
+ * at the same time. A table takes megabytes at 2048 bits and more, so evict() drops the tables of a
+ * key that is no longer used.
+ */
+public class FixedBaseExp
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::FixedBaseExp";
+
+    // Tables that have already been built, keyed by base
+    private static final HashMap<BigInteger, FixedBaseExp> tables = new HashMap<>();
+
+    // Base raised to every exponent and the modulus every result is reduced by
+    private final BigInteger base;
+    private final BigInteger modulus;
+
+    // Largest exponent length the table covers
+    private final int maxExponentBits;
+
+    // Number of exponent bits handled by each table lookup
+    private final int window;
+
+    // Reduces every product
+    private final BarrettContext reducer;
+
+    // table[i][j] = base^(j * 2^(window * i)) mod modulus, table[i][0] is unused
+    private final BigInteger[][] table;
+
+    /**
+     * @param base the fixed base
+     * @param modulus the modulus every result is reduced by
+     * @param maxExponentBits largest number of bits in an exponent
+     * @param window number of exponent bits handled by each lookup (1 to 8), the table holds
+     *               maxExponentBits / window * (2^window - 1) values
+     */
+    public FixedBaseExp(BigInteger base, BigInteger modulus, int maxExponentBits, int window)
+    {
+        this(base, modulus, maxExponentBits, window, null);
+    }
+
+    /**
+     * @param savedTable the table saved by write(), or null to build it
+     */
+    private FixedBaseExp(BigInteger base, BigInteger modulus, int maxExponentBits, int window, BigInteger[][] savedTable)
+    {
+        if (window < 1 || window > 8)
+            throw new IllegalArgumentException("FixedBaseExp: window must be between 1 and 8");
+        if (maxExponentBits < 1)
+            throw new IllegalArgumentException("FixedBaseExp: maxExponentBits must be >= 1");
+
+        this.base = base;
+        this.modulus = modulus;
+        this.maxExponentBits = maxExponentBits;
+        this.window = window;
+        this.reducer = BarrettContext.get(modulus);
+
+        if (savedTable != null)
+        {
+            this.table = savedTable;
+            return;
+        }
+
+        int windows = (maxExponentBits + window - 1) / window;
+        int digits = 1 << window;
+        this.table = new BigInteger[windows][digits];
+
+        BigInteger windowBase = base.mod(modulus);
+        for (int i = 0; i < windows; i++)
+        {
+            table[i][1] = windowBase;
+            for (int j = 2; j < digits; j++)
+            {
+                table[i][j] = reducer.multiply(table[i][j - 1], windowBase);
+            }
+
+            // base^(2^(window * (i + 1))) = base^((2^window - 1) * 2^(window * i)) * base^(2^(window * i))
+            windowBase = reducer.multiply(table[i][digits - 1], windowBase);
+        }
+    }
+
+    /**
+     * Gets the shared table for a base and modulus, building it the first time
+     * @param base the fixed base
+     * @param modulus the modulus every result is reduced by
+     * @param maxExponentBits largest number of bits in an exponent
+     * @param window number of exponent bits handled by each lookup
+     * @return FixedBaseExp a table covering at least maxExponentBits bits
+     */
+    public static synchronized FixedBaseExp get(BigInteger base, BigInteger modulus, int maxExponentBits, int window)
+    {
+        FixedBaseExp exp = tables.get(base);
+        if (exp != null && exp.modulus.equals(modulus) && exp.maxExponentBits >= maxExponentBits)
+            return exp;
+
+        exp = new FixedBaseExp(base, modulus, maxExponentBits, window);
+        tables.put(base, exp);
+        return exp;
+    }
+
+    /**
+     * Removes every shared table reducing by a modulus, so a key that is no longer used can be
+     * garbage collected. Instances already handed out keep working.
+     * @param modulus the modulus of the tables to drop, such as n^2
+     */
+    public static synchronized void evict(BigInteger modulus)
+    {
+        Iterator<FixedBaseExp> iterator = tables.values().iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().modulus.equals(modulus))
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Writes the table so read() can restore it without any multiplications. The values are
+     * followed by their SHA-256 hash so read() can reject a corrupted table.
+     * @param out stream to write to
+     */
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(maxExponentBits);
+        out.writeInt(window);
+        Utilities.writeBigInteger(out, base);
+        Utilities.writeBigInteger(out, modulus);
+        for (int i = 0; i < table.length; i++)
+        {
+            for (int j = 1; j < table[i].length; j++)
+            {
+                Utilities.writeBigInteger(out, table[i][j]);
+            }
+        }
+        out.write(hash(base, modulus, table));
+    }
+
+    /**
+     * @return byte[] SHA-256 of the base, the modulus and every value of the table
+     */
+    private static byte[] hash(BigInteger base, BigInteger modulus, BigInteger[][] table)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(base.toByteArray());
+            digest.update(modulus.toByteArray());
+            for (int i = 0; i < table.length; i++)
+            {
+                for (int j = 1; j < table[i].length; j++)
+                {
+                    digest.update(table[i][j].toByteArray());
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a table written by write() and shares it through get(). A table whose hash does not
+     * match, whose values are not below the modulus, or that does not start with the base is
+     * rejected, since it would silently produce invalid randomizers.
+     * @param in stream to read from
+     * @return FixedBaseExp the table
+     * @throws IOException if the stream ends early or the table is corrupted
+     */
+    public static FixedBaseExp read(DataInputStream in) throws IOException
+    {
+        int maxExponentBits = in.readInt();
+        int window = in.readInt();
+        if (window < 1 || window > 8 || maxExponentBits < 1)
+            throw new IOException("FixedBaseExp.read: bad table size");
+
+        BigInteger base = Utilities.readBigInteger(in);
+        BigInteger modulus = Utilities.readBigInteger(in);
+        BigInteger[][] table = new BigInteger[(maxExponentBits + window - 1) / window][1 << window];
+        for (int i = 0; i < table.length; i++)
+        {
+            for (int j = 1; j < table[i].length; j++)
+            {
+                table[i][j] = Utilities.readBigInteger(in);
+                if (table[i][j].signum() < 0 || table[i][j].compareTo(modulus) >= 0)
+                    throw new IOException("FixedBaseExp.read: table value is not below the modulus");
+            }
+        }
+
+        byte[] expected = new byte[32];
+        in.readFully(expected);
+        if (!MessageDigest.isEqual(expected, hash(base, modulus, table)))
+            throw new IOException("FixedBaseExp.read: table does not match its hash");
+        if (modulus.compareTo(BigInteger.ONE) <= 0 || !table[0][1].equals(base.mod(modulus)))
+            throw new IOException("FixedBaseExp.read: table does not start with the base");
+
+        FixedBaseExp exp = new FixedBaseExp(base, modulus, maxExponentBits, window, table);
+        synchronized (FixedBaseExp.class)
+        {
+            tables.put(base, exp);
+        }
+        return exp;
+    }
+
+    /**
+     * @param exponent a non-negative exponent of at most maxExponentBits bits
+     * @return BigInteger base^exponent mod modulus
+     */
+    public BigInteger pow(BigInteger exponent)
+    {
+        if (exponent.signum() < 0 || exponent.bitLength() > maxExponentBits)
+            throw new IllegalArgumentException("FixedBaseExp.pow(BigInteger): exponent must be between 0 and 2^" + maxExponentBits);
+
+        BigInteger result = BigInteger.ONE;
+        int bits = exponent.bitLength();
+        for (int i = 0; i * window < bits; i++)
+        {
+            // Digit of the exponent in window i
+            int digit = 0;
+            for (int bit = window - 1; bit >= 0; bit--)
+            {
+                digit = (digit << 1) | (exponent.testBit(i * window + bit) ? 1 : 0);
+            }
+
+            if (digit != 0)
+                result = reducer.multiply(result, table[i][digit]);
+        }
+
+        return result;
+    }
+
+    public BigInteger getBase()
+    {
+        return base;
+    }
+
+    public BigInteger getModulus()
+    {
+        return modulus;
+    }
+
+    public int getMaxExponentBits()
+    {
+        return maxExponentBits;
+    }
+}
@@ -0,0 +1,391 @@
+package mst.nsh9b3.uface;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Computes on Paillier (or Damgard-Jurik) ciphertexts without decrypting them, such as comparing an
+ * uploaded encryptedHistogram against stored templates. Only the public key is needed.
+ *
+ * Every product is reduced with the shared BarrettContext of the ciphertext modulus. Batch variants
+ * avoid repeated work where they can: negate() inverts a whole array with one modular inverse, and
+ * productOfPowers() computes sum(w_i * m_i) as one simultaneous exponentiation. That means one
+ * shared run of squarings for all ciphertexts, and tables of powers reused across weight vectors.
+ *
+ * Ciphertexts must be below the ciphertext modulus. The class holds no mutable state, so one
+ * instance can be used by any number of threads.
+ */
+public class HomomorphicOperations
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::HomomorphicOperations";
+
+    // Largest window used by productOfPowers()
+    private static final int MAX_WINDOW = 6;
+
+    // Public key the ciphertexts belong to
+    private final PaillierEncryption paillier;
+
+    // n^2 (n^(s+1) with Damgard-Jurik) and n (n^s)
+    private final BigInteger modulus;
+    private final BigInteger plaintextModulus;
+
+    // Reduces every product mod the ciphertext modulus
+    private final BarrettContext reducer;
+
+    /**
+     * @param paillier the public key the ciphertexts were encrypted with
+     */
+    public HomomorphicOperations(PaillierEncryption paillier)
+    {
+        this.paillier = paillier;
+        this.modulus = paillier.getCiphertextModulus();
+        this.plaintextModulus = paillier.getPlaintextModulus();
+        this.reducer = BarrettContext.get(modulus);
+    }
+
+    /**
+     * @param a encryption of m1
+     * @param b encryption of m2
+     * @return BigInteger an encryption of m1 + m2
+     */
+    public BigInteger add(BigInteger a, BigInteger b)
+    {
+        return reducer.multiply(check(a), check(b));
+    }
+
+    /**
+     * @param a encryptions of m1[i]
+     * @param b encryptions of m2[i]
+     * @return BigInteger[] encryptions of m1[i] + m2[i]
+     */
+    public BigInteger[] add(BigInteger[] a, BigInteger[] b)
+    {
+        checkLengths(a.length, b.length);
+        BigInteger[] result = new BigInteger[a.length];
+        for (int i = 0; i < a.length; i++)
+        {
+            result[i] = add(a[i], b[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @param c encryptions of m[i]
+     * @return BigInteger an encryption of the sum of every m[i] (an encryption of 0 with r = 1 when c is empty)
+     */
+    public BigInteger sum(BigInteger[] c)
+    {
+        BigInteger result = BigInteger.ONE;
+        for (int i = 0; i < c.length; i++)
+        {
+            result = reducer.multiply(result, check(c[i]));
+        }
+        return result;
+    }
+
+    /**
+     * @param c encryption of m1
+     * @param m a plaintext, reduced mod n (n^s) so negative values subtract
+     * @return BigInteger an encryption of m1 + m, with the same randomness as c
+     */
+    public BigInteger addPlain(BigInteger c, BigInteger m)
+    {
+        return reducer.multiply(check(c), paillier.encode(m.mod(plaintextModulus)));
+    }
+
+    /**
+     * @param c encryptions of m1[i]
+     * @param m plaintexts, reduced mod n (n^s)
+     * @return BigInteger[] encryptions of m1[i] + m[i]
+     */
+    public BigInteger[] addPlain(BigInteger[] c, BigInteger[] m)
+    {
+        checkLengths(c.length, m.length);
+        BigInteger[] result = new BigInteger[c.length];
+        for (int i = 0; i < c.length; i++)
+        {
+            result[i] = addPlain(c[i], m[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @param c encryption of m
+     * @param k any scalar, negative values multiply by the inverse
+     * @return BigInteger an encryption of k * m
+     */
+    public BigInteger scalarMultiply(BigInteger c, BigInteger k)
+    {
+        return check(c).modPow(k, modulus);
+    }
+
+    /**
+     * @param c encryptions of m[i]
+     * @param k any scalar
+     * @return BigInteger[] encryptions of k * m[i]
+     */
+    public BigInteger[] scalarMultiply(BigInteger[] c, BigInteger k)
+    {
+        if (k.signum() < 0)
+            return scalarMultiply(negate(c), k.negate());
+
+        BigInteger[] result = new BigInteger[c.length];
+        for (int i = 0; i < c.length; i++)
+        {
+            result[i] = scalarMultiply(c[i], k);
+        }
+        return result;
+    }
+
+    /**
+     * @param c encryptions of m[i]
+     * @param k any scalars
+     * @return BigInteger[] encryptions of k[i] * m[i]
+     */
+    public BigInteger[] scalarMultiply(BigInteger[] c, BigInteger[] k)
+    {
+        checkLengths(c.length, k.length);
+        BigInteger[] result = new BigInteger[c.length];
+        for (int i = 0; i < c.length; i++)
+        {
+            result[i] = scalarMultiply(c[i], k[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @param c encryption of m
+     * @return BigInteger an encryption of -m
+     */
+    public BigInteger negate(BigInteger c)
+    {
+        return check(c).modInverse(modulus);
+    }
+
+    /**
+     * Inverts every ciphertext with a single modular inverse (Montgomery's trick): the inverse of
+     * the product of all of them is multiplied back out with 3 multiplications per ciphertext
+     * @param c encryptions of m[i]
+     * @return BigInteger[] encryptions of -m[i]
+     */
+    public BigInteger[] negate(BigInteger[] c)
+    {
+        BigInteger[] result = new BigInteger[c.length];
+        if (c.length == 0)
+            return result;
+
+        // prefix[i] = c[0] * ... * c[i]
+        BigInteger[] prefix = new BigInteger[c.length];
+        prefix[0] = check(c[0]);
+        for (int i = 1; i < c.length; i++)
+        {
+            prefix[i] = reducer.multiply(prefix[i - 1], check(c[i]));
+        }
+
+        // inverse = (c[0] * ... * c[i])^{-1} at the start of each step
+        BigInteger inverse = prefix[c.length - 1].modInverse(modulus);
+        for (int i = c.length - 1; i > 0; i--)
+        {
+            result[i] = reducer.multiply(inverse, prefix[i - 1]);
+            inverse = reducer.multiply(inverse, c[i]);
+        }
+        result[0] = inverse;
+        return result;
+    }
+
+    /**
+     * @param a encryption of m1
+     * @param b encryption of m2
+     * @return BigInteger an encryption of m1 - m2 (mod n, or n^s)
+     */
+    public BigInteger subtract(BigInteger a, BigInteger b)
+    {
+        return add(a, negate(b));
+    }
+
+    /**
+     * @param a encryptions of m1[i]
+     * @param b encryptions of m2[i]
+     * @return BigInteger[] encryptions of m1[i] - m2[i]
+     */
+    public BigInteger[] subtract(BigInteger[] a, BigInteger[] b)
+    {
+        checkLengths(a.length, b.length);
+        return add(a, negate(b));
+    }
+
+    /**
+     * Multiplies by a fresh encryption of 0 so the result can not be linked to c. The encryption
+     * of 0 uses the public key's randomizer pool, fixed base and backend when they are set.
+     * @param c encryption of m
+     * @return BigInteger a new encryption of m
+     * @throws Exception if encrypting 0 fails
+     */
+    public BigInteger rerandomize(BigInteger c) throws Exception
+    {
+        return add(c, paillier.Encryption(BigInteger.ZERO));
+    }
+
+    /**
+     * @param c encryptions of m[i]
+     * @return BigInteger[] new encryptions of m[i], the encryptions of 0 are computed in parallel
+     * @throws Exception if encrypting 0 fails
+     */
+    public BigInteger[] rerandomize(BigInteger[] c) throws Exception
+    {
+        BigInteger[] zeros = new BigInteger[c.length];
+        Arrays.fill(zeros, BigInteger.ZERO);
+        return add(c, paillier.encryptAll(zeros));
+    }
+
+    /**
+     * @param c encryptions of m[i]
+     * @param weights any scalars w[i], negative ones use the inverse of c[i]
+     * @return BigInteger an encryption of the sum of w[i] * m[i]
+     */
+    public BigInteger productOfPowers(BigInteger[] c, BigInteger[] weights)
+    {
+        return productOfPowers(c, new BigInteger[][]{weights})[0];
+    }
+
+    /**
+     * Computes the product of c[i]^weights[row][i] for every row with simultaneous exponentiation.
+     * Each row needs one squaring per exponent bit in total rather than one per bit of every weight,
+     * and the tables of powers of each c[i] are built once and shared by every row.
+     * @param c encryptions of m[i]
+     * @param weights rows of scalars, each as long as c (such as one row per stored template)
+     * @return BigInteger[] for every row, an encryption of the sum of weights[row][i] * m[i]
+     */
+    public BigInteger[] productOfPowers(BigInteger[] c, BigInteger[][] weights)
+    {
+        // Negative weights raise the inverse of c[i] instead, so find out which bases are needed
+        boolean[] positive = new boolean[c.length];
+        boolean[] negative = new boolean[c.length];
+        boolean anyNegative = false;
+        int bits = 0;
+        for (int row = 0; row < weights.length; row++)
+        {
+            checkLengths(c.length, weights[row].length);
+            for (int i = 0; i < c.length; i++)
+            {
+                int sign = weights[row][i].signum();
+                positive[i] |= sign > 0;
+                negative[i] |= sign < 0;
+                anyNegative |= sign < 0;
+                bits = Math.max(bits, weights[row][i].abs().bitLength());
+            }
+        }
+
+        // Window with the fewest multiplications: 2^w - 2 to build a table, bits / w for every row
+        int window = 1;
+        long best = Long.MAX_VALUE;
+        for (int w = 1; w <= MAX_WINDOW; w++)
+        {
+            long cost = (1L << w) - 2 + (long) weights.length * ((bits + w - 1) / w);
+            if (cost < best)
+            {
+                best = cost;
+                window = w;
+            }
+        }
+
+        BigInteger[] inverses = anyNegative ? negate(c) : null;
+        BigInteger[][] tables = new BigInteger[c.length][];
+        BigInteger[][] inverseTables = new BigInteger[c.length][];
+        for (int i = 0; i < c.length; i++)
+        {
+            if (positive[i])
+                tables[i] = powers(check(c[i]), window);
+            if (negative[i])
+                inverseTables[i] = powers(inverses[i], window);
+        }
+
+        BigInteger[] result = new BigInteger[weights.length];
+        int windows = (bits + window - 1) / window;
+        for (int row = 0; row < weights.length; row++)
+        {
+            BigInteger product = BigInteger.ONE;
+            boolean started = false;
+            for (int position = windows - 1; position >= 0; position--)
+            {
+                if (started)
+                {
+                    for (int b = 0; b < window; b++)
+                    {
+                        product = reducer.square(product);
+                    }
+                }
+
+                for (int i = 0; i < c.length; i++)
+                {
+                    BigInteger weight = weights[row][i];
+                    if (weight.signum() == 0)
+                        continue;
+
+                    int digit = digit(weight.abs(), position, window);
+                    if (digit == 0)
+                        continue;
+
+                    BigInteger power = weight.signum() > 0 ? tables[i][digit] : inverseTables[i][digit];
+                    product = started ? reducer.multiply(product, power) : power;
+                    started = true;
+                }
+            }
+            result[row] = product;
+        }
+
+        return result;
+    }
+
+    /**
+     * @param base value below the modulus
+     * @param window number of exponent bits handled by each lookup
+     * @return BigInteger[] base^j for j = 0 to 2^window - 1
+     */
+    private BigInteger[] powers(BigInteger base, int window)
+    {
+        BigInteger[] table = new BigInteger[1 << window];
+        table[0] = BigInteger.ONE;
+        table[1] = base;
+        for (int j = 2; j < table.length; j++)
+        {
+            table[j] = reducer.multiply(table[j - 1], base);
+        }
+        return table;
+    }
+
+    /**
+     * @param exponent a non-negative exponent
+     * @param position index of the window, 0 is the least significant
+     * @param window number of bits in each window
+     * @return int the bits of exponent in that window
+     */
+    private static int digit(BigInteger exponent, int position, int window)
+    {
+        int digit = 0;
+        for (int bit = window - 1; bit >= 0; bit--)
+        {
+            digit = (digit << 1) | (exponent.testBit(position * window + bit) ? 1 : 0);
+        }
+        return digit;
+    }
+
+    /**
+     * @param c a ciphertext
+     * @return BigInteger c
+     * @throws IllegalArgumentException if c is not below the ciphertext modulus
+     */
+    private BigInteger check(BigInteger c)
+    {
+        if (c.signum() < 0 || c.compareTo(modulus) >= 0)
+            throw new IllegalArgumentException("HomomorphicOperations: ciphertext is not in Z_{n^2}");
+        return c;
+    }
+
+    private static void checkLengths(int a, int b)
+    {
+        if (a != b)
+            throw new IllegalArgumentException("HomomorphicOperations: arrays have different lengths (" + a + " and " + b + ")");
+    }
+}
@@ -0,0 +1,81 @@
+package mst.nsh9b3.uface;
+
+/**
+ * Sum of every pixel above and to the left of each point of an image, stored as
+ * (width + 1) x (height + 1) ints with a first row and column of 0. The sum of any rectangle is
+ * read with 4 lookups.
+ * One instance can be built once for an image and shared by several MultiBlockLBP operators with
+ * different block sizes, so multi-scale features need a single pass over the pixels.
+ */
+public class IntegralImage
+{
+    // Sums stored row by row
+    private int[] sums;
+
+    // Number of ints in each row of sums (width + 1)
+    private int stride;
+
+    // Dimensions of the image the sums were built from
+    private int width;
+    private int height;
+
+    /**
+     * Builds the sums with a single pass over the pixels, reusing the array when the size is unchanged
+     * @param pixels the image stored row by row with one byte per pixel
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     */
+    public void build(byte[] pixels, int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        int size = stride * (height + 1);
+        if (sums == null || sums.length != size)
+            sums = new int[size];
+
+        // The first row and column stay 0
+        for (int i = 0; i < stride; i++)
+        {
+            sums[i] = 0;
+        }
+
+        for (int row = 0; row < height; row++)
+        {
+            int rowSum = 0;
+            int pixel = row * width;
+            int above = row * stride;
+            int current = above + stride;
+
+            sums[current] = 0;
+            for (int col = 0; col < width; col++)
+            {
+                rowSum += pixels[pixel + col] & 0xFF;
+                sums[current + col + 1] = sums[above + col + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * @return int[] the sums, the point (row, col) is at row * getStride() + col
+     */
+    public int[] getSums()
+    {
+        return sums;
+    }
+
+    public int getStride()
+    {
+        return stride;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+}
@@ -0,0 +1,174 @@
+package mst.nsh9b3.uface;
+
+import java.util.Arrays;
+
+/**
+ * The histogram bin of every pixel in an image together with one integral image per bin.
+ * Once built, the histogram of any rectangle is read with 4 lookups per bin, so the image can be
+ * split into any grid without computing the LBP values again.
+ * The integral histograms take (width + 1) * (height + 1) * bins ints of memory
+ * (about 15MB for a 256x256 image with 59 bins).
+ */
+public class LBPCodeImage
+{
+    // Bin stored for pixels too close to the edge of the image to have an LBP value
+    public static final int NO_BIN = 0xFF;
+
+    // Dimensions of the image
+    private final int width;
+    private final int height;
+
+    // Number of bins in the histogram
+    private final int bins;
+
+    // Histogram bin of every pixel stored row by row (NO_BIN at the border)
+    private final byte[] binImage;
+
+    // Count of each bin above and to the left of every point, stored as [row][col][bin]
+    private final int[] integralHistogram;
+
+    /**
+     * Computes the LBP value of every pixel once and builds the integral histograms
+     * @param pixels the image stored row by row with one byte per pixel
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     * @param operator operator used to compute the LBP values
+     * @param mapping lookup table from LBP values to histogram bins (at most 255 bins)
+     */
+    public LBPCodeImage(byte[] pixels, int width, int height, LBPOperator operator, LBPMapping mapping)
+    {
+        if (mapping.getBins() >= NO_BIN)
+            throw new IllegalArgumentException("LBPCodeImage: mapping must have less than " + NO_BIN + " bins");
+
+        this.width = width;
+        this.height = height;
+        this.bins = mapping.getBins();
+
+        binImage = new byte[width * height];
+        Arrays.fill(binImage, (byte) NO_BIN);
+
+        // Compute the bin of every pixel that has all of its neighbors
+        operator.prepare(pixels, width, height);
+        int border = operator.getBorder();
+        int[] table = mapping.getTable();
+        int[] codes = new int[width];
+        for (int row = border; row < height - border; row++)
+        {
+            operator.computeRow(pixels, width, row, border, width - border, codes);
+            int offset = row * width + border;
+            for (int i = 0; i < width - 2 * border; i++)
+            {
+                binImage[offset + i] = (byte) table[codes[i]];
+            }
+        }
+
+        integralHistogram = buildIntegralHistogram();
+    }
+
+    /**
+     * Builds the integral histogram with one pass over the bin image. Each point is the point
+     * above it plus the running count of the current row.
+     * @return int[] the integral histogram
+     */
+    private int[] buildIntegralHistogram()
+    {
+        int stride = (width + 1) * bins;
+        int[] integral = new int[stride * (height + 1)];
+        int[] rowCounts = new int[bins];
+
+        for (int row = 0; row < height; row++)
+        {
+            Arrays.fill(rowCounts, 0);
+
+            int above = row * stride + bins;
+            int current = above + stride;
+            for (int col = 0; col < width; col++, above += bins, current += bins)
+            {
+                int bin = binImage[row * width + col] & 0xFF;
+                if (bin != NO_BIN)
+                    rowCounts[bin]++;
+
+                for (int b = 0; b < bins; b++)
+                {
+                    integral[current + b] = integral[above + b] + rowCounts[b];
+                }
+            }
+        }
+
+        return integral;
+    }
+
+    /**
+     * Reads the histogram of a rectangle of the image. Pixels at the border are not counted.
+     * @param top first row of the rectangle
+     * @param left first column of the rectangle
+     * @param bottom row after the last row of the rectangle
+     * @param right column after the last column of the rectangle
+     * @param histogram receives the count of each bin
+     */
+    public void cellHistogram(int top, int left, int bottom, int right, int[] histogram)
+    {
+        int stride = (width + 1) * bins;
+        int topLeft = top * stride + left * bins;
+        int topRight = top * stride + right * bins;
+        int botLeft = bottom * stride + left * bins;
+        int botRight = bottom * stride + right * bins;
+
+        for (int b = 0; b < bins; b++)
+        {
+            histogram[b] = integralHistogram[botRight + b] - integralHistogram[topRight + b]
+                    - integralHistogram[botLeft + b] + integralHistogram[topLeft + b];
+        }
+    }
+
+    /**
+     * Reads the histogram of every section of a grid. Only the grid and overlap of config are used,
+     * the operator and mapping are the ones this image was built with.
+     * @param config layout of the grid
+     * @return int[][] histogram[number of sections][number of bins]
+     */
+    public int[][] gridHistograms(LBPConfig config)
+    {
+        int gridRows = config.getGridRows();
+        int gridCols = config.getGridCols();
+        int[][] histogram = new int[config.getCellCount()][bins];
+
+        int index = 0;
+        for (int row = 0; row < gridRows; row++)
+        {
+            for (int column = 0; column < gridCols; column++)
+            {
+                cellHistogram(config.cellStart(row, gridRows, height), config.cellStart(column, gridCols, width),
+                        config.cellEnd(row, gridRows, height), config.cellEnd(column, gridCols, width),
+                        histogram[index++]);
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @return int the histogram bin of the pixel or NO_BIN if it is at the border
+     */
+    public int getBin(int row, int col)
+    {
+        return binImage[row * width + col] & 0xFF;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getBins()
+    {
+        return bins;
+    }
+}
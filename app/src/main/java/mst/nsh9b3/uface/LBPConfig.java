@@ -0,0 +1,236 @@
+package mst.nsh9b3.uface;
+
+/**
+ * Settings used by LBPExtractor to split an image into a grid of sections.
+ * The defaults produce the original 4x4 grid of uniform LBP histograms without any overlap.
+ */
+public class LBPConfig
+{
+    // Number of sections down and across the image
+    private int gridRows = 4;
+    private int gridCols = 4;
+
+    // Number of pixels each section extends into its neighbors on every side
+    private int overlap = 0;
+
+    // Number of threads used to generate the sections of the grid
+    private int parallelism = 1;
+
+    // Operator used to compute the LBP value of each pixel
+    private LBPOperator operator = new BasicLBP();
+
+    // Bin of every LBP value in the histogram of a section
+    private LBPMapping mapping = LBPMapping.UNIFORM;
+
+    // True to generate histograms of OpenCV images with NativeLBP when the operator is BasicLBP
+    private boolean openCVBackend = false;
+
+    // Number of bits each bin is quantized to before packing (0 keeps the exact counts)
+    private int quantizationBits = 0;
+    private boolean logQuantization = false;
+
+    // Number of zero bits packed above every bin so the server can add templates homomorphically
+    private int headroomBits = 0;
+
+    public LBPConfig()
+    {
+    }
+
+    public LBPConfig(int gridRows, int gridCols)
+    {
+        setGrid(gridRows, gridCols);
+    }
+
+    /**
+     * Sets the number of sections the image is split into
+     * @param gridRows number of sections down the image
+     * @param gridCols number of sections across the image
+     */
+    public void setGrid(int gridRows, int gridCols)
+    {
+        if (gridRows < 1 || gridCols < 1)
+            throw new IllegalArgumentException("LBPConfig.setGrid(int, int): grid must have at least 1 row and 1 column");
+        this.gridRows = gridRows;
+        this.gridCols = gridCols;
+    }
+
+    /**
+     * Sets how far each section extends past its own area into the sections around it.
+     * Sections at the edge of the image are clipped to the image.
+     * @param overlap number of pixels added on every side of a section
+     */
+    public void setOverlap(int overlap)
+    {
+        if (overlap < 0)
+            throw new IllegalArgumentException("LBPConfig.setOverlap(int): overlap must be >= 0");
+        this.overlap = overlap;
+    }
+
+    /**
+     * @param parallelism number of threads the sections of the grid are split across,
+     *                    1 generates every section on the calling thread
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("LBPConfig.setParallelism(int): parallelism must be >= 1");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the operator used to compute the LBP value of each pixel. If the current mapping was
+     * made for a different number of neighbors it is replaced by the uniform mapping of the operator.
+     * @param operator such as BasicLBP (the default) or CircularLBP
+     */
+    public void setOperator(LBPOperator operator)
+    {
+        this.operator = operator;
+        if (mapping.getNeighbors() != operator.getNeighbors())
+            mapping = LBPMapping.uniform(operator.getNeighbors());
+    }
+
+    /**
+     * @param mapping lookup table from LBP values to histogram bins, such as LBPMapping.UNIFORM (59 bins)
+     *                or LBPMapping.RIU2 (10 bins). It must be for the operator's number of neighbors.
+     */
+    public void setMapping(LBPMapping mapping)
+    {
+        if (mapping.getNeighbors() != operator.getNeighbors())
+            throw new IllegalArgumentException("LBPConfig.setMapping(LBPMapping): mapping must be for " + operator.getNeighbors() + " neighbors");
+        this.mapping = mapping;
+    }
+
+    /**
+     * @param openCVBackend true to generate the histograms of OpenCV images with whole image OpenCV
+     *                      operations (NativeLBP) instead of the Java pixel loop. Only used with BasicLBP.
+     */
+    public void setOpenCVBackend(boolean openCVBackend)
+    {
+        this.openCVBackend = openCVBackend;
+    }
+
+    /**
+     * Quantizes every bin of the histogram before it is packed for encryption, so more bins fit in each
+     * plaintext. Counts are normalized by the size of the largest section.
+     * @param bits number of bits per bin (1 to 16), or 0 to keep the exact counts
+     * @param logScale true to scale log(1 + count) instead of the count, which keeps more detail in
+     *                 the small counts most bins hold
+     */
+    public void setQuantization(int bits, boolean logScale)
+    {
+        if (bits < 0 || bits > 16)
+            throw new IllegalArgumentException("LBPConfig.setQuantization(int, boolean): bits must be between 0 and 16");
+        this.quantizationBits = bits;
+        this.logQuantization = logScale;
+    }
+
+    /**
+     * Keeps zero bits above every bin when the histogram is packed, so a server can add up to
+     * 2^bits encrypted templates slot by slot without one bin overflowing into the next.
+     * BitPacker.headroomFor() gives the bits needed for a number of templates.
+     * @param bits number of headroom bits per bin, 0 packs the bins back to back
+     */
+    public void setHeadroom(int bits)
+    {
+        if (bits < 0 || bits > 31)
+            throw new IllegalArgumentException("LBPConfig.setHeadroom(int): bits must be between 0 and 31");
+        this.headroomBits = bits;
+    }
+
+    public int getGridRows()
+    {
+        return gridRows;
+    }
+
+    public int getGridCols()
+    {
+        return gridCols;
+    }
+
+    public int getOverlap()
+    {
+        return overlap;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public LBPOperator getOperator()
+    {
+        return operator;
+    }
+
+    public LBPMapping getMapping()
+    {
+        return mapping;
+    }
+
+    public boolean isOpenCVBackend()
+    {
+        return openCVBackend;
+    }
+
+    public int getQuantizationBits()
+    {
+        return quantizationBits;
+    }
+
+    public boolean isLogQuantization()
+    {
+        return logQuantization;
+    }
+
+    public int getHeadroomBits()
+    {
+        return headroomBits;
+    }
+
+    /**
+     * @return int the number of sections in the grid
+     */
+    public int getCellCount()
+    {
+        return gridRows * gridCols;
+    }
+
+    /**
+     * Finds the first pixel of a section along one dimension of the image. The pixels left over
+     * when the length does not divide evenly are spread across the sections.
+     * @param index the row or column of the section in the grid
+     * @param cells the number of sections along this dimension
+     * @param length the number of pixels along this dimension
+     * @return int the first pixel of the section including the overlap
+     */
+    int cellStart(int index, int cells, int length)
+    {
+        return Math.max(0, index * length / cells - overlap);
+    }
+
+    /**
+     * Finds the pixel after the last pixel of a section along one dimension of the image
+     * @param index the row or column of the section in the grid
+     * @param cells the number of sections along this dimension
+     * @param length the number of pixels along this dimension
+     * @return int the end (exclusive) of the section including the overlap
+     */
+    int cellEnd(int index, int cells, int length)
+    {
+        return Math.min(length, (index + 1) * length / cells + overlap);
+    }
+
+    /**
+     * Finds the largest number of pixels any section of an image can hold.
+     * This bounds the value of every bin in the histogram.
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     * @return int the number of pixels in the largest section
+     */
+    public int getMaxCellPixels(int width, int height)
+    {
+        int cellHeight = Math.min(height, (height + gridRows - 1) / gridRows + 2 * overlap);
+        int cellWidth = Math.min(width, (width + gridCols - 1) / gridCols + 2 * overlap);
+        return cellHeight * cellWidth;
+    }
+}
@@ -0,0 +1,466 @@
+package mst.nsh9b3.uface;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates the LBP histogram of a gray-scale face image.
+ * The image is copied out of OpenCV with a single bulk read and every LBP code is then
+ * computed from offsets into that buffer instead of calling Mat.get() for each neighbor.
+ * Buffers are kept between images, so one extractor can be reused to process many faces
+ * (for example during enrollment) without allocating anything per image.
+ */
+public class LBPExtractor
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::LBPExtractor";
+
+    // Buffer the OpenCV image is copied into (reused for images of the same size)
+    private byte[] buffer;
+
+    // Pixels of the current image stored row by row
+    private byte[] pixels;
+
+    // Dimensions of the current image
+    private int width;
+    private int height;
+
+    // Layout of the grid and number of threads
+    private final LBPConfig config;
+
+    // Array and index the histogram of the current image is written to
+    private int[] features;
+    private int featuresOffset;
+
+    // Scratch space for the LBP values of one row, one for each task
+    private int[][] codes;
+
+    // Threads used when parallelism is greater than 1 (created on first use)
+    private ExecutorService executor;
+
+    // Work given to the executor for each image, created with the executor and reused
+    private final List<Callable<Void>> tasks = new ArrayList<>();
+    private final List<Future<Void>> futures = new ArrayList<>();
+
+    // OpenCV backend used when the configuration asks for it (created on first use)
+    private NativeLBP nativeLBP;
+
+    // Operator used for the current image
+    private LBPOperator operator;
+
+    // Integral image shared by every block size of extractMultiScale() (created on first use)
+    private IntegralImage integralImage;
+
+    // Operators of extractMultiScale() that read integralImage, keyed by block size
+    private final HashMap<Integer, MultiBlockLBP> multiBlockOperators = new HashMap<>();
+
+    public LBPExtractor()
+    {
+        this(new LBPConfig());
+    }
+
+    public LBPExtractor(LBPConfig config)
+    {
+        this.config = config;
+    }
+
+    /**
+     * Generates the histogram of an 8-bit single channel OpenCV image
+     * @param faceMat the image of the face
+     * @return int[][] histogram[number of sections][number of bins]
+     */
+    public int[][] extract(Mat faceMat)
+    {
+        if (config.isOpenCVBackend() && config.getOperator() instanceof BasicLBP)
+        {
+            if (nativeLBP == null)
+                nativeLBP = new NativeLBP();
+            return nativeLBP.extract(faceMat, config);
+        }
+
+        read(faceMat);
+        return extract(buffer, faceMat.cols(), faceMat.rows());
+    }
+
+    /**
+     * Copies an 8-bit single channel OpenCV image into the buffer
+     * @param faceMat the image to read
+     */
+    private void read(Mat faceMat)
+    {
+        // A submat is not stored as one block so copy it before reading
+        Mat source = faceMat;
+        if (!faceMat.isContinuous())
+            source = faceMat.clone();
+
+        int rows = source.rows();
+        int cols = source.cols();
+        if (buffer == null || buffer.length != rows * cols)
+            buffer = new byte[rows * cols];
+
+        // Read every pixel with one call
+        source.get(0, 0, buffer);
+
+        if (source != faceMat)
+            source.release();
+    }
+
+    /**
+     * Computes the LBP value of every pixel once so the image can be split into any grid afterwards.
+     * Uses the operator and mapping of this extractor's configuration.
+     * @param faceMat the image of the face
+     * @return LBPCodeImage the bin of every pixel and its integral histograms
+     */
+    public LBPCodeImage extractCodeImage(Mat faceMat)
+    {
+        read(faceMat);
+        return new LBPCodeImage(buffer, faceMat.cols(), faceMat.rows(), config.getOperator(), config.getMapping());
+    }
+
+    /**
+     * Generates the histogram of an image that is already stored as bytes
+     * @param pixels the image stored row by row with one byte per pixel
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     * @return int[][] histogram[number of sections][number of bins]
+     */
+    public int[][] extract(byte[] pixels, int width, int height)
+    {
+        int bins = config.getMapping().getBins();
+        int[] features = new int[getFeatureLength()];
+        extract(pixels, width, height, features, 0);
+
+        // Split the features into the histogram of each individual element in the grid
+        int[][] histogram = new int[config.getCellCount()][bins];
+        for (int i = 0; i < histogram.length; i++)
+        {
+            System.arraycopy(features, i * bins, histogram[i], 0, bins);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @return int the number of values written for each image: number of sections * number of bins
+     */
+    public int getFeatureLength()
+    {
+        return config.getCellCount() * config.getMapping().getBins();
+    }
+
+    /**
+     * Generates the histogram of an 8-bit single channel OpenCV image into a caller supplied array.
+     * Once the buffers have grown to the image size nothing is allocated (apart from the executor's
+     * task bookkeeping when parallelism is greater than 1, or when the OpenCV backend is used).
+     * @param faceMat the image of the face
+     * @param features receives the histogram of each section one after another
+     * @param offset index in features of the first value
+     */
+    public void extract(Mat faceMat, int[] features, int offset)
+    {
+        if (config.isOpenCVBackend() && config.getOperator() instanceof BasicLBP)
+        {
+            int[][] histogram = extract(faceMat);
+            for (int i = 0; i < histogram.length; i++)
+            {
+                System.arraycopy(histogram[i], 0, features, offset + i * histogram[i].length, histogram[i].length);
+            }
+            return;
+        }
+
+        read(faceMat);
+        extract(buffer, faceMat.cols(), faceMat.rows(), features, offset);
+    }
+
+    /**
+     * Generates the histogram of an image that is already stored as bytes into a caller supplied array
+     * @param pixels the image stored row by row with one byte per pixel
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     * @param features receives the histogram of each section one after another
+     * @param offset index in features of the first value
+     */
+    public void extract(byte[] pixels, int width, int height, int[] features, int offset)
+    {
+        extract(pixels, width, height, config.getOperator(), features, offset);
+    }
+
+    /**
+     * Generates multi-block LBP histograms for several block sizes of an 8-bit single channel OpenCV
+     * image, reading the image once
+     * @param faceMat the image of the face
+     * @param blockSizes width and height of the blocks of each scale
+     * @param features receives the histogram of every section for the first block size, then for the
+     *                 second and so on (blockSizes.length * getFeatureLength() values)
+     * @param offset index in features of the first value
+     */
+    public void extractMultiScale(Mat faceMat, int[] blockSizes, int[] features, int offset)
+    {
+        read(faceMat);
+        extractMultiScale(buffer, faceMat.cols(), faceMat.rows(), blockSizes, features, offset);
+    }
+
+    /**
+     * Generates multi-block LBP histograms for several block sizes. The integral image is built once
+     * and shared by every block size, so each extra scale only costs its own comparisons.
+     * Uses the grid, mapping and parallelism of the configuration, but not its operator.
+     * @param pixels the image stored row by row with one byte per pixel
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     * @param blockSizes width and height of the blocks of each scale
+     * @param features receives the histogram of every section for the first block size, then for the
+     *                 second and so on (blockSizes.length * getFeatureLength() values)
+     * @param offset index in features of the first value
+     */
+    public void extractMultiScale(byte[] pixels, int width, int height, int[] blockSizes, int[] features, int offset)
+    {
+        if (config.getMapping().getNeighbors() != 8)
+            throw new IllegalArgumentException("LBPExtractor.extractMultiScale: the mapping must be for 8 neighbors");
+
+        if (integralImage == null)
+            integralImage = new IntegralImage();
+        integralImage.build(pixels, width, height);
+
+        for (int i = 0; i < blockSizes.length; i++)
+        {
+            MultiBlockLBP scale = multiBlockOperators.get(blockSizes[i]);
+            if (scale == null)
+            {
+                scale = new MultiBlockLBP(blockSizes[i], integralImage);
+                multiBlockOperators.put(blockSizes[i], scale);
+            }
+            extract(pixels, width, height, scale, features, offset + i * getFeatureLength());
+        }
+    }
+
+    /**
+     * Generates the histogram of an image with the given operator into a caller supplied array
+     * @param operator operator used to compute the LBP value of each pixel
+     */
+    private void extract(byte[] pixels, int width, int height, LBPOperator operator, int[] features, int offset)
+    {
+        this.operator = operator;
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.features = features;
+        this.featuresOffset = offset;
+
+        Arrays.fill(features, offset, offset + getFeatureLength(), 0);
+
+        // Let the operator build anything it needs from the whole image
+        operator.prepare(pixels, width, height);
+
+        if (config.getParallelism() > 1)
+            generateParallel();
+        else
+            generateSequential(0, 1);
+
+        // Do not hold on to the caller's arrays
+        this.pixels = null;
+        this.features = null;
+        this.operator = null;
+    }
+
+    /**
+     * Generates the histogram of many images, one after another, reusing every buffer
+     * @param faces 8-bit single channel images of faces
+     * @param features receives the histogram of face i in features[i]
+     */
+    public void extractAll(List<Mat> faces, int[][] features)
+    {
+        for (int i = 0; i < faces.size(); i++)
+        {
+            extract(faces.get(i), features[i], 0);
+        }
+    }
+
+    /**
+     * Generates the histogram of many images that are already stored as bytes
+     * @param images the images stored row by row with one byte per pixel
+     * @param width number of columns in every image
+     * @param height number of rows in every image
+     * @param features receives the histogram of image i in features[i]
+     */
+    public void extractAll(byte[][] images, int width, int height, int[][] features)
+    {
+        for (int i = 0; i < images.length; i++)
+        {
+            extract(images[i], width, height, features[i], 0);
+        }
+    }
+
+    /**
+     * Gets the scratch space for the LBP values of one row, sized to the current image
+     * @param task the task the scratch space belongs to
+     * @return int[] at least width long
+     */
+    private int[] getCodes(int task)
+    {
+        if (codes == null || codes.length < config.getParallelism())
+            codes = new int[config.getParallelism()][];
+        if (codes[task] == null || codes[task].length < width)
+            codes[task] = new int[width];
+        return codes[task];
+    }
+
+    /**
+     * Generates every section of the grid starting at first and stepping by step
+     * @param first index of the first section to generate
+     * @param step distance between the sections generated by this call
+     */
+    private void generateSequential(int first, int step)
+    {
+        int[] codes = getCodes(first);
+        int cells = config.getCellCount();
+
+        for (int index = first; index < cells; index += step)
+        {
+            generateLocalHistogram(index, codes);
+        }
+    }
+
+    /**
+     * Splits the sections of the grid across the executor. Every section writes to its own
+     * part of the features so the results need no merging once all of the tasks are done.
+     */
+    private void generateParallel()
+    {
+        int parallelism = config.getParallelism();
+        if (executor == null || tasks.size() != parallelism)
+        {
+            shutdownExecutor();
+            executor = Executors.newFixedThreadPool(parallelism);
+
+            // Interleave the sections so the tasks get a similar amount of border pixels
+            for (int i = 0; i < parallelism; i++)
+            {
+                final int first = i;
+                final int step = parallelism;
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        generateSequential(first, step);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        // Create the scratch space here so the tasks never resize the shared array
+        for (int i = 0; i < parallelism; i++)
+        {
+            getCodes(i);
+        }
+
+        futures.clear();
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            futures.add(executor.submit(tasks.get(i)));
+        }
+
+        // The tasks are short so wait for all of them even if this thread is interrupted
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            while (true)
+            {
+                try
+                {
+                    futures.get(i).get();
+                    break;
+                } catch (InterruptedException e)
+                {
+                    interrupted = true;
+                } catch (ExecutionException e)
+                {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+        futures.clear();
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void shutdownExecutor()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+        tasks.clear();
+    }
+
+    /**
+     * Stops the threads used for parallel extraction and frees any OpenCV memory.
+     * The extractor can still be used afterwards.
+     */
+    public void shutdown()
+    {
+        shutdownExecutor();
+        if (nativeLBP != null)
+        {
+            nativeLBP.release();
+            nativeLBP = null;
+        }
+    }
+
+    /**
+     * This generates a histogram for a section of the grid into its part of the features
+     * @param index the index of the section in the grid (row major)
+     * @param codes scratch space for the LBP values of one row
+     */
+    private void generateLocalHistogram(int index, int[] codes)
+    {
+        int gridRows = config.getGridRows();
+        int gridCols = config.getGridCols();
+        int row = index / gridCols;
+        int column = index % gridCols;
+
+        // Get grid dimensions
+        int startRow = config.cellStart(row, gridRows, height);
+        int startCol = config.cellStart(column, gridCols, width);
+        int endRow = config.cellEnd(row, gridRows, height);
+        int endCol = config.cellEnd(column, gridCols, width);
+
+        // LBP needs every neighbor so skip the pixels too close to the edge of the image
+        int border = operator.getBorder();
+        int startLBPRow = Math.max(startRow, border);
+        int startLBPCol = Math.max(startCol, border);
+        int endLBPRow = Math.min(endRow, height - border);
+        int endLBPCol = Math.min(endCol, width - border);
+
+        int count = endLBPCol - startLBPCol;
+        int[] bins = config.getMapping().getTable();
+
+        // This section's histogram inside the features
+        int[] histSec = features;
+        int histOffset = featuresOffset + index * config.getMapping().getBins();
+
+        // LBP algorithm
+        for (int k = startLBPRow; k < endLBPRow && count > 0; k++)
+        {
+            operator.computeRow(pixels, width, k, startLBPCol, endLBPCol, codes);
+
+            // Place each value in the correct spot in the array based off the lookup table
+            for (int i = 0; i < count; i++)
+            {
+                histSec[histOffset + bins[codes[i]]]++;
+            }
+        }
+    }
+}
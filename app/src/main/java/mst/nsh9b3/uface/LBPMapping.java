@@ -0,0 +1,131 @@
+package mst.nsh9b3.uface;
+
+import java.util.HashMap;
+
+/**
+ * Lookup table from every possible LBP value to its bin in the histogram.
+ * A pattern is uniform when it has at most 2 bitwise changes going around the circle of neighbors.
+ */
+public class LBPMapping
+{
+    // Mappings that have already been generated, keyed by number of neighbors
+    private static final HashMap<Integer, LBPMapping> uniformMappings = new HashMap<>();
+    private static final HashMap<Integer, LBPMapping> riu2Mappings = new HashMap<>();
+
+    // Every uniform pattern gets its own bin, all other patterns share the last bin (59 bins)
+    public static final LBPMapping UNIFORM = uniform(8);
+
+    // Uniform patterns are binned by their number of 1 bits, all other patterns share the last bin (10 bins)
+    public static final LBPMapping RIU2 = rotationInvariantUniform(8);
+
+    // Number of neighbors (bits) in each LBP value
+    private final int neighbors;
+
+    // Number of bins in the histogram
+    private final int bins;
+
+    // Bin of every possible LBP value
+    private final int[] table;
+
+    private LBPMapping(int neighbors, int bins, int[] table)
+    {
+        this.neighbors = neighbors;
+        this.bins = bins;
+        this.table = table;
+    }
+
+    /**
+     * Generates bins for the uniform values only, in increasing order. For 8 neighbors these are
+     * 0, 1, 2, 3, 4, 6, 7, 8, 12, 14, 15, 16, 24, 28, 30, 31, 32, 48, 56, 60, 62, 63, 64,
+     * 96, 112, 120, 124, 126, 127, 128, 129, 131, 135, 143, 159, 191, 192, 193, 195, 199, 207, 223,
+     * 224, 225, 227, 231, 239, 240, 241, 243, 247, 248, 249, 251, 252, 253, 254, 255.
+     * All other values get dumped into a separate bin (non-uniform bin).
+     *
+     * The table is generated once for each number of neighbors and shared afterwards.
+     *
+     * @param neighbors number of bits in each LBP value
+     * @return LBPMapping with neighbors * (neighbors - 1) + 3 bins
+     */
+    public static synchronized LBPMapping uniform(int neighbors)
+    {
+        LBPMapping mapping = uniformMappings.get(neighbors);
+        if (mapping != null)
+            return mapping;
+
+        int bins = neighbors * (neighbors - 1) + 3;
+        int[] table = new int[1 << neighbors];
+        int count = 0;
+        for (int i = 0; i < table.length; i++)
+        {
+            if (transitions(i, neighbors) <= 2)
+                table[i] = count++;
+            else
+                table[i] = bins - 1;
+        }
+
+        mapping = new LBPMapping(neighbors, bins, table);
+        uniformMappings.put(neighbors, mapping);
+        return mapping;
+    }
+
+    /**
+     * Generates rotation invariant bins: every rotation of a uniform value lands in the same bin,
+     * which is the number of 1 bits in the value. All other values get dumped into the last bin.
+     *
+     * The table is generated once for each number of neighbors and shared afterwards.
+     *
+     * @param neighbors number of bits in each LBP value
+     * @return LBPMapping with neighbors + 2 bins
+     */
+    public static synchronized LBPMapping rotationInvariantUniform(int neighbors)
+    {
+        LBPMapping mapping = riu2Mappings.get(neighbors);
+        if (mapping != null)
+            return mapping;
+
+        int bins = neighbors + 2;
+        int[] table = new int[1 << neighbors];
+        for (int i = 0; i < table.length; i++)
+        {
+            if (transitions(i, neighbors) <= 2)
+                table[i] = Integer.bitCount(i);
+            else
+                table[i] = bins - 1;
+        }
+
+        mapping = new LBPMapping(neighbors, bins, table);
+        riu2Mappings.put(neighbors, mapping);
+        return mapping;
+    }
+
+    /**
+     * Counts the bitwise changes going once around the circle of neighbors
+     * @param value the LBP value
+     * @param neighbors number of bits in the value
+     * @return int the number of changes from 0 to 1 or 1 to 0
+     */
+    private static int transitions(int value, int neighbors)
+    {
+        // Rotate by one bit and count the bits that differ
+        int rotated = (value >> 1) | ((value & 1) << (neighbors - 1));
+        return Integer.bitCount(value ^ rotated);
+    }
+
+    public int getNeighbors()
+    {
+        return neighbors;
+    }
+
+    public int getBins()
+    {
+        return bins;
+    }
+
+    /**
+     * @return int[] the bin of every possible LBP value, this array must not be modified
+     */
+    int[] getTable()
+    {
+        return table;
+    }
+}
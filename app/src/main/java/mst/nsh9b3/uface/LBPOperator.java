@@ -0,0 +1,42 @@
+package mst.nsh9b3.uface;
+
+/**
+ * Computes the LBP values of an image one row at a time.
+ * Images are stored row by row with one byte per pixel.
+ * An operator may keep data about the current image, so one instance should not be used
+ * by two extractors at the same time.
+ */
+public abstract class LBPOperator
+{
+    /**
+     * Called once for every image before any of its rows are computed
+     * @param pixels the image
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     */
+    public void prepare(byte[] pixels, int width, int height)
+    {
+    }
+
+    /**
+     * @return int the number of neighbors (bits) in each LBP value
+     */
+    public abstract int getNeighbors();
+
+    /**
+     * @return int the number of pixels at each edge of the image that do not have every neighbor
+     */
+    public abstract int getBorder();
+
+    /**
+     * Computes the LBP value of every pixel in part of a row. Every pixel must be at least
+     * getBorder() pixels away from each edge of the image.
+     * @param pixels the image
+     * @param width number of columns in the image
+     * @param row the row of the pixels
+     * @param startCol first column to compute
+     * @param endCol column after the last column to compute
+     * @param codes receives the LBP value of column startCol + i at index i
+     */
+    public abstract void computeRow(byte[] pixels, int width, int row, int startCol, int endCol, int[] codes);
+}
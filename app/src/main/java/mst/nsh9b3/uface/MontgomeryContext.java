@@ -0,0 +1,345 @@
+package mst.nsh9b3.uface;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+
+/**
+ * Modular exponentiation for one odd modulus (such as n^2) using Montgomery multiplication on
+ * 32-bit limbs. Every intermediate value lives in int[] scratch space that belongs to the calling
+ * thread and is reused between calls, so an exponentiation only allocates its input and result
+ * instead of new magnitude arrays for every multiplication.
+ *
+ * Contexts are built once for each modulus and shared through get().
+ *
+ * This is an experiment, not an optimization. Measured on HotSpot it is about 4 to 7 times slower
+ * than BigInteger.modPow at 2048 and 4096 bits, because modPow there uses intrinsics, and about 3
+ * times slower per multiplication than BarrettContext. On Android modPow is native, so this is not
+ * expected to be faster there either. Nothing uses it unless PaillierEncryption.setMontgomery(true)
+ * is called.
+ */
+public class MontgomeryContext
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::MontgomeryContext";
+
+    // Contexts that have already been built, keyed by modulus
+    private static final HashMap<BigInteger, MontgomeryContext> contexts = new HashMap<>();
+
+    // Mask for reading a limb as an unsigned value
+    private static final long MASK = 0xFFFFFFFFL;
+
+    // Largest window used by the sliding window exponentiation
+    private static final int MAX_WINDOW = 6;
+
+    private final BigInteger modulus;
+
+    // Limbs of the modulus, least significant first
+    private final int[] mod;
+
+    // Number of limbs
+    private final int s;
+
+    // -modulus^{-1} mod 2^32
+    private final long n0inv;
+
+    // R mod modulus, which is 1 in Montgomery form (R = 2^(32 * s))
+    private final int[] one;
+
+    // Scratch space of each thread
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+    {
+        @Override
+        protected Scratch initialValue()
+        {
+            return new Scratch(s);
+        }
+    };
+
+    /**
+     * Reusable arrays for one exponentiation
+     */
+    private static class Scratch
+    {
+        // Odd powers of the base: table[i] = base^(2i + 1) in Montgomery form
+        final int[][] table;
+        final int[] accumulator;
+        final int[] square;
+        final int[] product;
+        final int[] plain;
+
+        Scratch(int s)
+        {
+            table = new int[1 << (MAX_WINDOW - 1)][s];
+            accumulator = new int[s];
+            square = new int[s];
+            product = new int[s + 2];
+            plain = new int[s];
+        }
+    }
+
+    /**
+     * @param modulus an odd modulus greater than 1
+     */
+    public MontgomeryContext(BigInteger modulus)
+    {
+        if (modulus.signum() <= 0 || !modulus.testBit(0) || modulus.equals(BigInteger.ONE))
+            throw new IllegalArgumentException("MontgomeryContext: modulus must be odd and greater than 1");
+
+        this.modulus = modulus;
+        this.s = (modulus.bitLength() + 31) / 32;
+        this.mod = toLimbs(modulus, new int[s]);
+
+        // Newton iteration doubles the correct low bits of the inverse each step (1 -> 32 bits)
+        int inverse = mod[0];
+        for (int i = 0; i < 5; i++)
+        {
+            inverse *= 2 - mod[0] * inverse;
+        }
+        this.n0inv = (-inverse) & MASK;
+
+        this.one = toLimbs(BigInteger.ONE.shiftLeft(32 * s).mod(modulus), new int[s]);
+    }
+
+    /**
+     * Gets the shared context for a modulus, building it the first time
+     * @param modulus an odd modulus greater than 1
+     * @return MontgomeryContext the context
+     */
+    public static synchronized MontgomeryContext get(BigInteger modulus)
+    {
+        MontgomeryContext context = contexts.get(modulus);
+        if (context == null)
+        {
+            context = new MontgomeryContext(modulus);
+            contexts.put(modulus, context);
+        }
+        return context;
+    }
+
+    /**
+     * Removes the shared context of a modulus, so a key that is no longer used can be garbage
+     * collected. Contexts already handed out keep working.
+     * @param modulus the modulus of the context to drop
+     */
+    public static synchronized void evict(BigInteger modulus)
+    {
+        contexts.remove(modulus);
+    }
+
+    public BigInteger getModulus()
+    {
+        return modulus;
+    }
+
+    /**
+     * @param base any non-negative value
+     * @param exponent a non-negative exponent
+     * @return BigInteger base^exponent mod modulus
+     */
+    public BigInteger modPow(BigInteger base, BigInteger exponent)
+    {
+        return modPowMultiply(base, exponent, null);
+    }
+
+    /**
+     * Raises base to exponent and multiplies the result by factor. The last Montgomery multiplication
+     * by the plain factor also takes the result out of Montgomery form, so the product is free.
+     * @param base any non-negative value
+     * @param exponent a non-negative exponent
+     * @param factor a value below the modulus, or null for 1
+     * @return BigInteger base^exponent * factor mod modulus
+     */
+    public BigInteger modPowMultiply(BigInteger base, BigInteger exponent, BigInteger factor)
+    {
+        if (exponent.signum() < 0)
+            throw new IllegalArgumentException("MontgomeryContext.modPow: exponent must be >= 0");
+
+        Scratch sc = scratch.get();
+        int[] acc = sc.accumulator;
+        int[] sq = sc.square;
+        int[] t = sc.product;
+        int[][] table = sc.table;
+
+        // base * R mod modulus
+        toLimbs(base.shiftLeft(32 * s).mod(modulus), table[0]);
+
+        int bits = exponent.bitLength();
+        int window = bits > 671 ? 6 : bits > 239 ? 5 : bits > 79 ? 4 : bits > 23 ? 3 : bits > 5 ? 2 : 1;
+
+        // Odd powers base^1, base^3, ... base^(2^window - 1)
+        montMul(table[0], table[0], sq, t);
+        for (int i = 1; i < (1 << (window - 1)); i++)
+        {
+            montMul(table[i - 1], sq, table[i], t);
+        }
+
+        System.arraycopy(one, 0, acc, 0, s);
+        boolean started = false;
+        int i = bits - 1;
+        while (i >= 0)
+        {
+            if (!exponent.testBit(i))
+            {
+                if (started)
+                    montMul(acc, acc, acc, t);
+                i--;
+                continue;
+            }
+
+            // Longest window starting at bit i that ends on a 1 bit
+            int j = Math.max(i - window + 1, 0);
+            while (!exponent.testBit(j))
+            {
+                j++;
+            }
+
+            int value = 0;
+            for (int k = i; k >= j; k--)
+            {
+                value = (value << 1) | (exponent.testBit(k) ? 1 : 0);
+            }
+
+            if (started)
+            {
+                for (int k = i; k >= j; k--)
+                {
+                    montMul(acc, acc, acc, t);
+                }
+                montMul(acc, table[value >>> 1], acc, t);
+            }
+            else
+            {
+                System.arraycopy(table[value >>> 1], 0, acc, 0, s);
+                started = true;
+            }
+            i = j - 1;
+        }
+
+        // Multiplying by a plain value (1 or factor) leaves Montgomery form
+        int[] plain = sc.plain;
+        if (factor == null)
+        {
+            for (int k = 0; k < s; k++)
+            {
+                plain[k] = 0;
+            }
+            plain[0] = 1;
+        }
+        else
+        {
+            toLimbs(factor.mod(modulus), plain);
+        }
+        montMul(acc, plain, acc, t);
+
+        return fromLimbs(acc);
+    }
+
+    /**
+     * Montgomery multiplication (CIOS): out = a * b * R^{-1} mod modulus
+     * @param a value below the modulus
+     * @param b value below the modulus
+     * @param out receives the product, may be the same array as a or b
+     * @param t scratch space of s + 2 limbs
+     */
+    private void montMul(int[] a, int[] b, int[] out, int[] t)
+    {
+        for (int k = 0; k < s + 2; k++)
+        {
+            t[k] = 0;
+        }
+
+        for (int i = 0; i < s; i++)
+        {
+            // t += a * b[i]
+            long bi = b[i] & MASK;
+            long c = 0;
+            for (int j = 0; j < s; j++)
+            {
+                long x = (t[j] & MASK) + (a[j] & MASK) * bi + c;
+                t[j] = (int) x;
+                c = x >>> 32;
+            }
+            long x = (t[s] & MASK) + c;
+            t[s] = (int) x;
+            t[s + 1] = (int) (x >>> 32);
+
+            // t = (t + m * modulus) / 2^32, where m makes the lowest limb zero
+            long m = ((t[0] & MASK) * n0inv) & MASK;
+            x = (t[0] & MASK) + m * (mod[0] & MASK);
+            c = x >>> 32;
+            for (int j = 1; j < s; j++)
+            {
+                x = (t[j] & MASK) + m * (mod[j] & MASK) + c;
+                t[j - 1] = (int) x;
+                c = x >>> 32;
+            }
+            x = (t[s] & MASK) + c;
+            t[s - 1] = (int) x;
+            t[s] = t[s + 1] + (int) (x >>> 32);
+        }
+
+        // t < 2 * modulus, subtract once if needed
+        if (t[s] != 0 || compare(t, mod) >= 0)
+        {
+            long borrow = 0;
+            for (int j = 0; j < s; j++)
+            {
+                long x = (t[j] & MASK) - (mod[j] & MASK) - borrow;
+                out[j] = (int) x;
+                borrow = (x >>> 63);
+            }
+        }
+        else
+        {
+            System.arraycopy(t, 0, out, 0, s);
+        }
+    }
+
+    /**
+     * @return int the sign of a - b, comparing the lowest s limbs
+     */
+    private int compare(int[] a, int[] b)
+    {
+        for (int j = s - 1; j >= 0; j--)
+        {
+            long x = a[j] & MASK;
+            long y = b[j] & MASK;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @param value a non-negative value of at most out.length limbs
+     * @param out receives the limbs, least significant first
+     * @return int[] out
+     */
+    private static int[] toLimbs(BigInteger value, int[] out)
+    {
+        byte[] bytes = value.toByteArray();
+        for (int j = 0; j < out.length; j++)
+        {
+            out[j] = 0;
+        }
+        for (int k = 0; k < bytes.length && k / 4 < out.length; k++)
+        {
+            out[k / 4] |= (bytes[bytes.length - 1 - k] & 0xff) << ((k % 4) * 8);
+        }
+        return out;
+    }
+
+    /**
+     * @param limbs a value, least significant limb first
+     * @return BigInteger the value
+     */
+    private static BigInteger fromLimbs(int[] limbs)
+    {
+        byte[] bytes = new byte[limbs.length * 4];
+        for (int k = 0; k < bytes.length; k++)
+        {
+            bytes[bytes.length - 1 - k] = (byte) (limbs[k / 4] >>> ((k % 4) * 8));
+        }
+        return new BigInteger(1, bytes);
+    }
+}
@@ -0,0 +1,127 @@
+package mst.nsh9b3.uface;
+
+/**
+ * Multi-block LBP operator: the sum of the s x s block centered on each pixel is compared with
+ * the sums of the 8 blocks touching it. Block sums are read from an integral image so every block
+ * costs the same no matter its size. A block size of 1 gives the same values as BasicLBP.
+ *
+ * For multi-scale features several operators can share one IntegralImage, which their owner builds
+ * once per image (see LBPExtractor.extractMultiScale()). An operator without a shared integral
+ * image builds its own in prepare().
+ */
+public class MultiBlockLBP extends LBPOperator
+{
+    // Width and height of each block
+    private final int blockSize;
+
+    // Sums of the current image
+    private final IntegralImage integral;
+
+    // True when prepare() builds the integral image, false when its owner does
+    private final boolean ownsIntegral;
+
+    /**
+     * @param blockSize width and height of each block in pixels
+     */
+    public MultiBlockLBP(int blockSize)
+    {
+        this(blockSize, new IntegralImage(), true);
+    }
+
+    /**
+     * @param blockSize width and height of each block in pixels
+     * @param integral integral image shared with other operators, built by the caller for every
+     *                 image before any row is computed
+     */
+    public MultiBlockLBP(int blockSize, IntegralImage integral)
+    {
+        this(blockSize, integral, false);
+    }
+
+    private MultiBlockLBP(int blockSize, IntegralImage integral, boolean ownsIntegral)
+    {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("MultiBlockLBP(int): blockSize must be >= 1");
+        this.blockSize = blockSize;
+        this.integral = integral;
+        this.ownsIntegral = ownsIntegral;
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    @Override
+    public int getNeighbors()
+    {
+        return 8;
+    }
+
+    @Override
+    public int getBorder()
+    {
+        // One block plus half of the center block on each side
+        return blockSize + blockSize / 2;
+    }
+
+    /**
+     * Builds the integral image with a single pass over the pixels, unless it is shared
+     */
+    @Override
+    public void prepare(byte[] pixels, int width, int height)
+    {
+        if (ownsIntegral)
+            integral.build(pixels, width, height);
+    }
+
+    @Override
+    public void computeRow(byte[] pixels, int width, int row, int startCol, int endCol, int[] codes)
+    {
+        int[] integral = this.integral.getSums();
+        int stride = this.integral.getStride();
+        int s = blockSize;
+
+        // The 3x3 blocks are bounded by a 4x4 lattice of points in the integral image
+        int top = row - s / 2 - s;
+        int y0 = top * stride;
+        int y1 = y0 + s * stride;
+        int y2 = y1 + s * stride;
+        int y3 = y2 + s * stride;
+
+        for (int i = 0; i < endCol - startCol; i++)
+        {
+            int x0 = startCol + i - s / 2 - s;
+            int x1 = x0 + s;
+            int x2 = x1 + s;
+            int x3 = x2 + s;
+
+            int a00 = integral[y0 + x0], a01 = integral[y0 + x1], a02 = integral[y0 + x2], a03 = integral[y0 + x3];
+            int a10 = integral[y1 + x0], a11 = integral[y1 + x1], a12 = integral[y1 + x2], a13 = integral[y1 + x3];
+            int a20 = integral[y2 + x0], a21 = integral[y2 + x1], a22 = integral[y2 + x2], a23 = integral[y2 + x3];
+            int a30 = integral[y3 + x0], a31 = integral[y3 + x1], a32 = integral[y3 + x2], a33 = integral[y3 + x3];
+
+            int center = a22 - a12 - a21 + a11;
+
+            int value = 0;
+            if (a11 - a01 - a10 + a00 >= center)
+                value |= 1 << 7;
+            if (a12 - a02 - a11 + a01 >= center)
+                value |= 1 << 6;
+            if (a13 - a03 - a12 + a02 >= center)
+                value |= 1 << 5;
+            if (a23 - a13 - a22 + a12 >= center)
+                value |= 1 << 4;
+            if (a33 - a23 - a32 + a22 >= center)
+                value |= 1 << 3;
+            if (a32 - a22 - a31 + a21 >= center)
+                value |= 1 << 2;
+            if (a31 - a21 - a30 + a20 >= center)
+                value |= 1 << 1;
+            if (a21 - a11 - a20 + a10 >= center)
+                value |= 1;
+
+            codes[i] = value;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package mst.nsh9b3.uface;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the same histogram as BasicLBP using whole image OpenCV operations.
+ * Each of the 8 neighbors is compared with the center pixels by comparing two shifted submats,
+ * the LBP values are mapped to bins with a lookup table and each section of the grid is counted with
+ * calcHist. Only the final counts are copied into Java, so a face takes a few dozen native calls.
+ * The Mats used along the way are kept and reused for the next image.
+ */
+public class NativeLBP
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::NativeLBP";
+
+    // Offset (row, col) of each neighbor from the highest bit to the lowest, same order as BasicLBP
+    private static final int[][] NEIGHBORS = {{-1, -1}, {-1, 0}, {-1, 1}, {0, 1}, {1, 1}, {1, 0}, {1, -1}, {0, -1}};
+
+    // LBP value of every pixel that has all 8 neighbors
+    private Mat codes = new Mat();
+
+    // 255 where the neighbor is greater than or equal to the center pixel
+    private Mat comparison = new Mat();
+
+    // Value of the bit currently being set
+    private Mat bit = new Mat();
+
+    // Histogram bin of every pixel that has all 8 neighbors
+    private Mat binImage = new Mat();
+
+    // Output of calcHist (bins x 1 floats)
+    private Mat cellHist = new Mat();
+
+    // Lookup table given to LUT and the mapping it was built from
+    private Mat lut;
+    private LBPMapping lutMapping;
+
+    /**
+     * Generates the histogram of each section of the grid
+     * @param faceMat 8-bit single channel image of the face
+     * @param config layout of the grid and mapping (the operator must be BasicLBP)
+     * @return int[][] histogram[number of sections][number of bins]
+     */
+    public int[][] extract(Mat faceMat, LBPConfig config)
+    {
+        if (!(config.getOperator() instanceof BasicLBP))
+            throw new IllegalArgumentException("NativeLBP.extract(Mat, LBPConfig): only BasicLBP is supported");
+
+        int height = faceMat.rows();
+        int width = faceMat.cols();
+        LBPMapping mapping = config.getMapping();
+        int bins = mapping.getBins();
+        int[][] histogram = new int[config.getCellCount()][bins];
+
+        if (height < 3 || width < 3)
+            return histogram;
+
+        // The center of every 3x3 neighborhood
+        Mat center = faceMat.submat(1, height - 1, 1, width - 1);
+
+        codes.create(height - 2, width - 2, CvType.CV_8UC1);
+        codes.setTo(new Scalar(0));
+        bit.create(height - 2, width - 2, CvType.CV_8UC1);
+
+        for (int i = 0; i < NEIGHBORS.length; i++)
+        {
+            int row = 1 + NEIGHBORS[i][0];
+            int col = 1 + NEIGHBORS[i][1];
+            Mat neighbor = faceMat.submat(row, row + height - 2, col, col + width - 2);
+
+            // Set this neighbor's bit wherever it is >= the center
+            Core.compare(neighbor, center, comparison, Core.CMP_GE);
+            bit.setTo(new Scalar(1 << (7 - i)));
+            Core.bitwise_or(codes, bit, codes, comparison);
+
+            neighbor.release();
+        }
+        center.release();
+
+        // Replace each LBP value with its bin
+        Core.LUT(codes, getLut(mapping), binImage);
+
+        // Count each section of the grid (the bin image starts at pixel (1, 1))
+        int gridRows = config.getGridRows();
+        int gridCols = config.getGridCols();
+        List<Mat> images = new ArrayList<>(1);
+        MatOfInt channels = new MatOfInt(0);
+        MatOfInt histSize = new MatOfInt(bins);
+        MatOfFloat ranges = new MatOfFloat(0, bins);
+        Mat noMask = new Mat();
+        float[] counts = new float[bins];
+
+        int index = 0;
+        for (int row = 0; row < gridRows; row++)
+        {
+            int startRow = Math.max(config.cellStart(row, gridRows, height), 1) - 1;
+            int endRow = Math.min(config.cellEnd(row, gridRows, height), height - 1) - 1;
+            for (int column = 0; column < gridCols; column++, index++)
+            {
+                int startCol = Math.max(config.cellStart(column, gridCols, width), 1) - 1;
+                int endCol = Math.min(config.cellEnd(column, gridCols, width), width - 1) - 1;
+                if (startRow >= endRow || startCol >= endCol)
+                    continue;
+
+                Mat cell = binImage.submat(startRow, endRow, startCol, endCol);
+                images.clear();
+                images.add(cell);
+                Imgproc.calcHist(images, channels, noMask, cellHist, histSize, ranges);
+                cellHist.get(0, 0, counts);
+                cell.release();
+
+                for (int b = 0; b < bins; b++)
+                {
+                    histogram[index][b] = (int) counts[b];
+                }
+            }
+        }
+
+        channels.release();
+        histSize.release();
+        ranges.release();
+        noMask.release();
+
+        return histogram;
+    }
+
+    /**
+     * Builds the 256 entry lookup table for LUT, reusing the last one if the mapping has not changed
+     * @param mapping lookup table from LBP values to histogram bins
+     * @return Mat 1 x 256 table of bins
+     */
+    private Mat getLut(LBPMapping mapping)
+    {
+        if (lut == null || lutMapping != mapping)
+        {
+            int[] table = mapping.getTable();
+            byte[] values = new byte[table.length];
+            for (int i = 0; i < table.length; i++)
+            {
+                values[i] = (byte) table[i];
+            }
+
+            if (lut == null)
+                lut = new Mat(1, 256, CvType.CV_8UC1);
+            lut.put(0, 0, values);
+            lutMapping = mapping;
+        }
+
+        return lut;
+    }
+
+    /**
+     * Frees the native memory of every Mat kept between images
+     */
+    public void release()
+    {
+        codes.release();
+        comparison.release();
+        bit.release();
+        binImage.release();
+        cellHist.release();
+        if (lut != null)
+            lut.release();
+        lut = null;
+        lutMapping = null;
+    }
+}
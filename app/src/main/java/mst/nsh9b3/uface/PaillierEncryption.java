@@ -2,8 +2,20 @@ package mst.nsh9b3.uface;
 
 import android.util.Log;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
-import java.util.Random;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by nick on 12/1/15.
@@ -20,10 +32,48 @@ public class PaillierEncryption
 
     private BigInteger g;
 
+    // True when g = n + 1, which lets g^m mod n^2 be computed as 1 + m*n
+    private boolean gIsNPlusOne;
+
     private BigInteger u;
 
+    // Values used by the key holder to work mod p^2 and q^2 and recombine (null when p and q are unknown)
+    private BigInteger psquare, qsquare;
+    private BigInteger hp, hq;
+    private BigInteger pInverseQ, psquareInverseQsquare;
+    private BigInteger nModPhiPsquare, nModPhiQsquare;
+
     private int bitLength;
 
+    // Damgard-Jurik exponent: plaintexts are in Z_{n^s} and ciphertexts in Z*_{n^(s+1)} (1 is plain Paillier)
+    private int s = 1;
+    private BigInteger ns, nsPlusOne;
+
+    // lambda^{-1} mod n^s, used by Damgard-Jurik decryption (computed on first use)
+    private BigInteger lambdaInverseNs;
+
+    // Fixed base h = -y^(2n) mod n^2 carried by the public key, and its table (built on first use)
+    private BigInteger h;
+    private FixedBaseExp fixedBase;
+
+    // Number of exponent bits handled by each lookup in the fixed base table
+    private static final int FIXED_BASE_WINDOW = 4;
+
+    // SHA-256 hash of the public key (computed on first use)
+    private String fingerprint;
+
+    // Source of every random value (r, x and the primes)
+    private RandomSource randomSource = RandomSource.getDefault();
+
+    // True to make sure every random r shares no factor with n
+    private boolean checkUnits = true;
+
+    // True to run exponentiations through MontgomeryContext instead of BigInteger.modPow (experimental, slower)
+    private boolean montgomery = false;
+
+    // Precomputed r^n values used by Encryption(m) when set
+    private RandomizerPool randomizerPool;
+
     public static final int number_of_bits = 1024;
 
     public PaillierEncryption() throws Exception
@@ -38,12 +88,50 @@ public class PaillierEncryption
         KeyGeneration(bitLengthVal, certainty);
     }
 
+    /**
+     * Public key read from a key file
+     */
+    private PaillierEncryption(BigInteger n, BigInteger g, int bitLength)
+    {
+        this.n = n;
+        this.nsquare = n.multiply(n);
+        this.g = g;
+        this.bitLength = bitLength;
+        this.gIsNPlusOne = g.equals(n.add(BigInteger.ONE));
+    }
+
     public PaillierEncryption(String nString, String gString, String bitLengthString)
     {
         this.n = new BigInteger(nString);
         this.nsquare = n.multiply(n);
         this.g = new BigInteger(gString);
         this.bitLength = Integer.parseInt(bitLengthString);
+        this.gIsNPlusOne = g.equals(n.add(BigInteger.ONE));
+    }
+
+    /**
+     * Creates a cryptosystem from the values of public_key.txt. The first 3 values are n, g and
+     * bitLength; any values after them are name=value pairs: s=... for Damgard-Jurik and h=... for
+     * the fixed base. Unknown names are ignored so older clients can read newer keys.
+     * @param values the space separated values of the public key file
+     * @return PaillierEncryption the public key
+     */
+    public static PaillierEncryption fromPublicKey(String[] values)
+    {
+        PaillierEncryption paillier = new PaillierEncryption(values[0], values[1], values[2]);
+
+        // s changes the modulus h belongs to, so set it first
+        BigInteger fixedBase = null;
+        for (int i = 3; i < values.length; i++)
+        {
+            if (values[i].startsWith("s="))
+                paillier.setDamgardJurik(Integer.parseInt(values[i].substring(2)));
+            else if (values[i].startsWith("h="))
+                fixedBase = new BigInteger(values[i].substring(2));
+        }
+        if (fixedBase != null)
+            paillier.setFixedBase(fixedBase);
+        return paillier;
     }
 
     public PaillierEncryption(String nString, String gString, String bitLengthString, String lamdaString, String uString)
@@ -54,20 +142,46 @@ public class PaillierEncryption
         this.bitLength = Integer.parseInt(bitLengthString);
         this.lambda = new BigInteger(lamdaString);
         this.u = new BigInteger(uString);
+        this.gIsNPlusOne = g.equals(n.add(BigInteger.ONE));
     }
 
-    private void KeyGeneration(int bitLengthVal, int certainty)
+    /**
+     * Creates the key holder's cryptosystem from its primes. Decryption and encryption are split
+     * into work mod p^2 and mod q^2 and recombined with the Chinese remainder theorem.
+     * @param p first prime
+     * @param q second prime, different from p and of the same size
+     * @param g generator, usually n + 1
+     */
+    public PaillierEncryption(BigInteger p, BigInteger q, BigInteger g)
     {
-        bitLength = bitLengthVal;
+        this.p = p;
+        this.q = q;
+        this.n = p.multiply(q);
+        this.nsquare = n.multiply(n);
+        this.g = g;
+        this.bitLength = n.bitLength();
+        this.gIsNPlusOne = g.equals(n.add(BigInteger.ONE));
+
+        BigInteger pMinusOne = p.subtract(BigInteger.ONE);
+        BigInteger qMinusOne = q.subtract(BigInteger.ONE);
+        this.lambda = pMinusOne.multiply(qMinusOne).divide(pMinusOne.gcd(qMinusOne));
+        if (gIsNPlusOne)
+            this.u = lambda.modInverse(n);
+        else
+            this.u = g.modPow(lambda, nsquare).subtract(BigInteger.ONE).divide(n).modInverse(n);
+
+        precomputeCRT();
+    }
 
-        // p = Random Prime Number
-        p = new BigInteger(bitLength / 2, certainty, new Random());
+    private void KeyGeneration(int bitLengthVal, int certainty) throws Exception
+    {
+        bitLength = bitLengthVal;
 
-        // q = DIFFERENT Random Prime Number
-        do
-        {
-            q = new BigInteger(bitLength / 2, certainty, new Random());
-        } while (q.compareTo(p) == 0);
+        // p and q = two DIFFERENT Random Prime Numbers, searched for at the same time
+        BigInteger[] primes = PaillierKeyManager.findPrimes(bitLength / 2, certainty, 2,
+                Runtime.getRuntime().availableProcessors(), randomSource);
+        p = primes[0];
+        q = primes[1];
 
         // n = p*q
         n = p.multiply(q);
@@ -78,88 +192,695 @@ public class PaillierEncryption
         // lambda = lcm(p-1, q-1) = (p-1)*(q-1)/gcd(p-1, q-1)
         lambda = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)).divide(
                 p.subtract(BigInteger.ONE).gcd(q.subtract(BigInteger.ONE)));
-        do
-        {
-            // g = random integer in Z*_{n*n}
-            g = randomZStarNSquare();
-        }
-        while (g.modPow(lambda, nsquare).subtract(BigInteger.ONE).divide(n).gcd(n).intValue() != 1);
+
+        // g = n + 1 always works and makes g^m a single multiplication
+        g = n.add(BigInteger.ONE);
+        gIsNPlusOne = true;
 
         // u = (L(g^lambda mod n^2))^{-1} mod n, where L(u) = (u-1)/n
-        u = g.modPow(lambda, nsquare).subtract(BigInteger.ONE).divide(n).modInverse(n);
+        // (n+1)^lambda = 1 + lambda*n mod n^2 so this is lambda^{-1} mod n
+        u = lambda.modInverse(n);
+
+        precomputeCRT();
     }
 
-    private BigInteger Encryption(BigInteger m, BigInteger r)
+    /**
+     * Precomputes the values used to decrypt and encrypt mod p^2 and q^2 once p and q are known
+     */
+    private void precomputeCRT()
     {
-        // c = g^m * r^n mod n^2
-        BigInteger encyptedValue = g.modPow(m, nsquare).multiply(r.modPow(n, nsquare)).mod(nsquare);
-        return encyptedValue;
+        BigInteger psquare = p.multiply(p);
+        BigInteger qsquare = q.multiply(q);
+
+        // hp = (L_p(g^(p-1) mod p^2))^{-1} mod p, where L_p(x) = (x-1)/p (same for q)
+        BigInteger pMinusOne = p.subtract(BigInteger.ONE);
+        BigInteger qMinusOne = q.subtract(BigInteger.ONE);
+        BigInteger hp = g.mod(psquare).modPow(pMinusOne, psquare).subtract(BigInteger.ONE).divide(p).modInverse(p);
+        BigInteger hq = g.mod(qsquare).modPow(qMinusOne, qsquare).subtract(BigInteger.ONE).divide(q).modInverse(q);
+
+        precomputeCRT(hp, hq);
+    }
+
+    /**
+     * Precomputes the CRT values that take no exponentiation, given the ones that do
+     * @param hp (L_p(g^(p-1) mod p^2))^{-1} mod p
+     * @param hq (L_q(g^(q-1) mod q^2))^{-1} mod q
+     */
+    private void precomputeCRT(BigInteger hp, BigInteger hq)
+    {
+        this.hp = hp;
+        this.hq = hq;
+        psquare = p.multiply(p);
+        qsquare = q.multiply(q);
+        BigInteger pMinusOne = p.subtract(BigInteger.ONE);
+        BigInteger qMinusOne = q.subtract(BigInteger.ONE);
+
+        // Used to recombine the halves mod n and mod n^2
+        pInverseQ = p.modInverse(q);
+        psquareInverseQsquare = psquare.modInverse(qsquare);
+
+        // r^n mod p^2 only needs n mod phi(p^2) = p(p-1) as the exponent (same for q)
+        nModPhiPsquare = n.mod(p.multiply(pMinusOne));
+        nModPhiQsquare = n.mod(q.multiply(qMinusOne));
+    }
+
+    /**
+     * @return boolean true if this cryptosystem knows p and q and uses the CRT split (plain Paillier only)
+     */
+    public boolean isCRT()
+    {
+        return psquare != null && s == 1;
+    }
+
+    /**
+     * Switches to the Damgard-Jurik generalization: plaintexts are in Z_{n^s} and ciphertexts are
+     * computed mod n^(s+1). A ciphertext then carries s times as many plaintext bits for only
+     * (s+1)/s times their size, so a packed histogram needs fewer ciphertexts.
+     * The key must use g = n + 1, and s must be set before a fixed base.
+     * @param s 1 for plain Paillier, or more to pack s*|n| bits into each ciphertext
+     */
+    public void setDamgardJurik(int s)
+    {
+        if (s < 1)
+            throw new IllegalArgumentException("Paillier.setDamgardJurik(int): s must be >= 1");
+        if (s > 1 && !gIsNPlusOne)
+            throw new IllegalStateException("Paillier.setDamgardJurik(int): Damgard-Jurik needs g = n + 1");
+        if (h != null)
+            throw new IllegalStateException("Paillier.setDamgardJurik(int): s must be set before the fixed base");
+
+        this.s = s;
+        this.ns = n.pow(s);
+        this.nsPlusOne = ns.multiply(n);
+        this.lambdaInverseNs = null;
+        this.fingerprint = null;
+    }
+
+    public int getS()
+    {
+        return s;
+    }
+
+    /**
+     * @return BigInteger n^2, or n^(s+1) with Damgard-Jurik
+     */
+    public BigInteger getCiphertextModulus()
+    {
+        return s > 1 ? nsPlusOne : nsquare;
+    }
+
+    /**
+     * @return BigInteger n, or n^s with Damgard-Jurik (the exponent of r and the plaintext modulus)
+     */
+    public BigInteger getPlaintextModulus()
+    {
+        return s > 1 ? ns : n;
+    }
+
+    /**
+     * @param r random integer in Z*_n
+     * @return BigInteger r^n mod n^2 (r^(n^s) mod n^(s+1) with Damgard-Jurik), computed mod p^2 and
+     *         q^2 when the primes are known
+     */
+    private BigInteger randomizer(BigInteger r)
+    {
+        if (!isCRT())
+            return modPow(r, getPlaintextModulus(), getCiphertextModulus());
+
+        BigInteger xp = modPow(r.mod(psquare), nModPhiPsquare, psquare);
+        BigInteger xq = modPow(r.mod(qsquare), nModPhiQsquare, qsquare);
+
+        // x = xp + p^2 * ((xq - xp) * (p^2)^{-1} mod q^2)
+        return xq.subtract(xp).multiply(psquareInverseQsquare).mod(qsquare).multiply(psquare).add(xp);
+    }
+
+    /**
+     * @param base the base
+     * @param exponent a non-negative exponent
+     * @param modulus n^2, p^2, q^2 or n^(s+1)
+     * @return BigInteger base^exponent mod modulus, using the selected arithmetic backend
+     */
+    private BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger modulus)
+    {
+        if (montgomery)
+            return MontgomeryContext.get(modulus).modPow(base, exponent);
+        return base.modPow(exponent, modulus);
+    }
+
+    /**
+     * Experimental, leave this off. The MontgomeryContext backend is several times slower than
+     * BigInteger.modPow at 2048 and 4096 bits on HotSpot, where modPow uses intrinsics. It is also
+     * not expected to win on Android, where modPow is native.
+     * @param montgomery true to run the exponentiations of encryption and decryption through a
+     *                   MontgomeryContext cached for each modulus. false (the default) uses BigInteger.modPow.
+     */
+    public void setMontgomery(boolean montgomery)
+    {
+        this.montgomery = montgomery;
+    }
+
+    /**
+     * @param m the message, in Z_n (Z_{n^s} with Damgard-Jurik)
+     * @return BigInteger g^m mod n^2 (mod n^(s+1) with Damgard-Jurik)
+     */
+    public BigInteger encode(BigInteger m)
+    {
+        // (n+1)^m = sum of C(m, k) * n^k for k = 0..s, as every higher power of n is 0 mod n^(s+1)
+        if (gIsNPlusOne && s > 1)
+        {
+            BigInteger result = BigInteger.ONE;
+            BigInteger binomial = BigInteger.ONE;
+            BigInteger nk = BigInteger.ONE;
+            for (int k = 1; k <= s; k++)
+            {
+                // C(m, k) = C(m, k-1) * (m - k + 1) / k, exact at every step
+                binomial = binomial.multiply(m.subtract(BigInteger.valueOf(k - 1))).divide(BigInteger.valueOf(k));
+                nk = nk.multiply(n);
+                result = result.add(binomial.mod(nsPlusOne).multiply(nk));
+            }
+            return result.mod(nsPlusOne);
+        }
+
+        // (n+1)^m = 1 + m*n mod n^2, which is already below n^2 since m < n
+        if (gIsNPlusOne)
+            return m.multiply(n).add(BigInteger.ONE);
+        if (isCRT())
+        {
+            BigInteger xp = modPow(g.mod(psquare), m.mod(p.multiply(p.subtract(BigInteger.ONE))), psquare);
+            BigInteger xq = modPow(g.mod(qsquare), m.mod(q.multiply(q.subtract(BigInteger.ONE))), qsquare);
+            return xq.subtract(xp).multiply(psquareInverseQsquare).mod(qsquare).multiply(psquare).add(xp);
+        }
+        return modPow(g, m, nsquare);
     }
 
     public BigInteger Encryption(BigInteger m) throws Exception
+    {
+        checkPlaintext(m);
+        return encrypt(m, null);
+    }
+
+    /**
+     * @param m the message
+     * @throws Exception if m is not in Z_n (Z_{n^s} with Damgard-Jurik)
+     */
+    private void checkPlaintext(BigInteger m) throws Exception
     {
         // if m is not in Z_n
-        if (m.compareTo(BigInteger.ZERO) < 0 || m.compareTo(n) >= 0)
+        if (m.compareTo(BigInteger.ZERO) < 0 || m.compareTo(getPlaintextModulus()) >= 0)
         {
             throw new Exception("Paillier.encrypt(BigInteger m): plaintext m is not in Z_n");
         }
+    }
+
+    /**
+     * @param m the message, in Z_n
+     * @param r random integer in Z*_n to use when no precomputed value is ready, or null to draw one
+     * @return BigInteger the ciphertext
+     */
+    private BigInteger encrypt(BigInteger m, BigInteger r)
+    {
+        // Use a precomputed r^n when one is ready
+        BigInteger randomizer = randomizerPool != null ? randomizerPool.take() : null;
+        if (randomizer == null && montgomery && h == null && !isCRT())
+        {
+            // c = r^n * g^m mod n^2 with the multiplication folded into the exponentiation
+            BigInteger random = r != null ? r : randomZStarN();
+            return MontgomeryContext.get(getCiphertextModulus()).modPowMultiply(random, getPlaintextModulus(), encode(m));
+        }
+        if (randomizer == null && r != null && h == null)
+            randomizer = randomizer(r);
+        if (randomizer == null)
+            randomizer = newRandomizer();
+
+        // c = g^m * r^n mod n^2
+        BigInteger encyptedValue = encode(m).multiply(randomizer).mod(getCiphertextModulus());
+        return encyptedValue;
+    }
+
+    /**
+     * Encrypts many messages using one thread per processor
+     * @param messages the messages, each in Z_n
+     * @return BigInteger[] the ciphertext of messages[i] in element i
+     */
+    public BigInteger[] encryptAll(BigInteger[] messages) throws Exception
+    {
+        return encryptAll(messages, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Encrypts many messages, spreading them over a bounded number of threads. Every thread draws
+     * the random values for its share at once from its own generator (see RandomSource) and writes
+     * only its own elements of the result, so the order of the ciphertexts matches the order of the messages.
+     * @param messages the messages, each in Z_n
+     * @param threads largest number of threads to use, 1 encrypts on the calling thread
+     * @return BigInteger[] the ciphertext of messages[i] in element i
+     */
+    public BigInteger[] encryptAll(final BigInteger[] messages, int threads) throws Exception
+    {
+        for (int i = 0; i < messages.length; i++)
+        {
+            checkPlaintext(messages[i]);
+        }
+
+        final BigInteger[] ciphertexts = new BigInteger[messages.length];
+        final int workers = Math.min(threads, messages.length);
+        if (workers <= 1)
+        {
+            BigInteger[] r = drawR(messages.length);
+            for (int i = 0; i < messages.length; i++)
+            {
+                ciphertexts[i] = encrypt(messages[i], r == null ? null : r[i]);
+            }
+            return ciphertexts;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try
+        {
+            // Interleave the messages so every worker gets a similar share
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int w = 0; w < workers; w++)
+            {
+                final int first = w;
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        BigInteger[] r = drawR((messages.length - first + workers - 1) / workers);
+                        for (int i = first, k = 0; i < messages.length; i += workers, k++)
+                        {
+                            ciphertexts[i] = encrypt(messages[i], r == null ? null : r[k]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    futures.get(i).get();
+                } catch (ExecutionException e)
+                {
+                    throw new Exception("Paillier.encryptAll(BigInteger[], int): " + e.getCause(), e.getCause());
+                }
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+
+        return ciphertexts;
+    }
+
+    /**
+     * Draws the r values for a batch of encryptions with one read of the random bytes
+     * @param count number of encryptions
+     * @return BigInteger[] random integers in Z*_n, or null when they would not be used
+     *         (precomputed values or a fixed base)
+     */
+    private BigInteger[] drawR(int count)
+    {
+        if (randomizerPool != null || h != null)
+            return null;
+        return randomSource.nextBelow(n, count, checkUnits);
+    }
+
+    /**
+     * Computes the part of a ciphertext that does not depend on the message, so it can be done ahead of time
+     * @return BigInteger r^n mod n^2 for a new random r in Z*_n, or h^x for a short random x when
+     *         the key has a fixed base
+     */
+    public BigInteger newRandomizer()
+    {
+        if (h != null)
+            return getFixedBaseTable().pow(randomSource.nextBigInteger(getFixedBaseExponentBits()));
+
         // r = random integer in Z*_n
-        BigInteger r = randomZStarN();
-        return Encryption(m, r);
+        return randomizer(randomZStarN());
+    }
+
+    /**
+     * @param randomSource source of every random value this cryptosystem draws
+     */
+    public void setRandomSource(RandomSource randomSource)
+    {
+        this.randomSource = randomSource;
+    }
+
+    /**
+     * @param checkUnits true (the default) to run a gcd on every random r to make sure it shares no
+     *                   factor with n. For a proper key the chance of that is negligible, so it can be skipped.
+     */
+    public void setCheckUnits(boolean checkUnits)
+    {
+        this.checkUnits = checkUnits;
+    }
+
+    /**
+     * Sets the fixed base used for randomness. h^x is an n-th power for every x, so encrypting with
+     * it is decrypted as usual; only the exponent is shorter than a random r in Z*_n.
+     * @param h -y^(2n) mod n^2 for a random y in Z*_n, or null to use random r^n again
+     */
+    public void setFixedBase(BigInteger h)
+    {
+        this.h = h;
+        this.fixedBase = null;
+        this.fingerprint = null;
+    }
+
+    /**
+     * Picks a new fixed base for this key (usually done once by the key holder, then published
+     * with toPublicKeyString())
+     * @return BigInteger h = -y^(2n) mod n^2
+     */
+    public BigInteger createFixedBase()
+    {
+        BigInteger y = randomZStarN();
+        setFixedBase(getCiphertextModulus().subtract(randomizer(y.multiply(y).mod(n))));
+        return h;
+    }
+
+    public BigInteger getFixedBase()
+    {
+        return h;
+    }
+
+    /**
+     * @return int the length of the random exponents used with the fixed base, half of n's length
+     */
+    public int getFixedBaseExponentBits()
+    {
+        return (n.bitLength() + 1) / 2;
+    }
+
+    /**
+     * @return FixedBaseExp the shared table of powers of h
+     */
+    private FixedBaseExp getFixedBaseTable()
+    {
+        FixedBaseExp table = fixedBase;
+        if (table == null)
+        {
+            table = FixedBaseExp.get(h, getCiphertextModulus(), getFixedBaseExponentBits(), FIXED_BASE_WINDOW);
+            fixedBase = table;
+        }
+        return table;
+    }
+
+    /**
+     * Drops the shared tables and modulus contexts built for this key (fixed base tables and the
+     * Montgomery and Barrett contexts of n^2, n^(s+1), p^2 and q^2), for example once a server has
+     * rotated to a new key. This cryptosystem keeps working and builds them again if needed.
+     */
+    public void releaseCaches()
+    {
+        fixedBase = null;
+
+        List<BigInteger> moduli = new ArrayList<>();
+        moduli.add(nsquare);
+        if (nsPlusOne != null)
+            moduli.add(nsPlusOne);
+        if (psquare != null)
+        {
+            moduli.add(psquare);
+            moduli.add(qsquare);
+        }
+
+        for (int i = 0; i < moduli.size(); i++)
+        {
+            FixedBaseExp.evict(moduli.get(i));
+            MontgomeryContext.evict(moduli.get(i));
+            BarrettContext.evict(moduli.get(i));
+        }
+    }
+
+    /**
+     * @param randomizerPool precomputed r^n values for this public key that Encryption(m) uses
+     *                       before computing its own, or null to always compute them
+     */
+    public void setRandomizerPool(RandomizerPool randomizerPool)
+    {
+        this.randomizerPool = randomizerPool;
     }
 
     public BigInteger Decryption(BigInteger c) throws Exception
     {
         // if c is not in Z*_{n^2}
-        if (c.compareTo(BigInteger.ZERO) < 0 || c.compareTo(nsquare) >= 0 || c.gcd(nsquare).intValue() != 1)
+        if (c.compareTo(BigInteger.ZERO) < 0 || c.compareTo(getCiphertextModulus()) >= 0 || c.gcd(n).intValue() != 1)
         {
             throw new Exception("Paillier.decrypt(BigInteger c): ciphertext c is not in Z*_{n^2}");
         }
 
-        BigInteger decryptedValue = c.modPow(lambda, nsquare).subtract(BigInteger.ONE).divide(n).multiply(u).mod(n);
+        if (isCRT())
+            return decryptCRT(c);
+        if (s > 1)
+            return decryptDamgardJurik(c);
+
+        BigInteger decryptedValue = modPow(c, lambda, nsquare).subtract(BigInteger.ONE).divide(n).multiply(u).mod(n);
 //        Log.d(TAG, "DecryptedValue: " + decryptedValue.toString());
         return decryptedValue;
     }
 
-    // return a random integer in Z_n
-    public BigInteger randomZN()
+    /**
+     * Damgard-Jurik decryption: c^lambda = (1+n)^(lambda*m) mod n^(s+1), and lambda*m mod n^s is
+     * recovered from it one power of n at a time
+     * @param c ciphertext in Z*_{n^(s+1)}
+     * @return BigInteger the message, in Z_{n^s}
+     */
+    private BigInteger decryptDamgardJurik(BigInteger c)
     {
-        BigInteger r;
+        BigInteger a = modPow(c, lambda, nsPlusOne);
 
-        do
+        BigInteger i = BigInteger.ZERO;
+        BigInteger nj = BigInteger.ONE;
+        for (int j = 1; j <= s; j++)
         {
-            r = new BigInteger(bitLength, new Random());
+            nj = nj.multiply(n);
+
+            // t1 = L(a mod n^(j+1)), where L(x) = (x-1)/n
+            BigInteger t1 = a.mod(nj.multiply(n)).subtract(BigInteger.ONE).divide(n);
+            BigInteger t2 = i;
+            BigInteger nk = BigInteger.ONE;
+            BigInteger kFactorial = BigInteger.ONE;
+            for (int k = 2; k <= j; k++)
+            {
+                // Remove the C(i, k) * n^(k-1) terms of the binomial expansion
+                i = i.subtract(BigInteger.ONE);
+                t2 = t2.multiply(i).mod(nj);
+                nk = nk.multiply(n);
+                kFactorial = kFactorial.multiply(BigInteger.valueOf(k));
+                t1 = t1.subtract(t2.multiply(nk).multiply(kFactorial.modInverse(nj))).mod(nj);
+            }
+            i = t1;
         }
-        while (r.compareTo(BigInteger.ZERO) <= 0 || r.compareTo(n) >= 0);
 
-        return r;
+        // i = lambda * m mod n^s
+        if (lambdaInverseNs == null)
+            lambdaInverseNs = lambda.modInverse(ns);
+        return i.multiply(lambdaInverseNs).mod(ns);
     }
 
-    // return a random integer in Z*_n
-    private BigInteger randomZStarN()
+    /**
+     * Decrypts mod p^2 and q^2 with exponents of half the size, then recombines mod n
+     * @param c ciphertext in Z*_{n^2}
+     * @return BigInteger the message
+     */
+    private BigInteger decryptCRT(BigInteger c)
+    {
+        // mp = L_p(c^(p-1) mod p^2) * hp mod p
+        BigInteger mp = modPow(c.mod(psquare), p.subtract(BigInteger.ONE), psquare).subtract(BigInteger.ONE).divide(p).multiply(hp).mod(p);
+
+        // mq = L_q(c^(q-1) mod q^2) * hq mod q
+        BigInteger mq = modPow(c.mod(qsquare), q.subtract(BigInteger.ONE), qsquare).subtract(BigInteger.ONE).divide(q).multiply(hq).mod(q);
+
+        // m = mp + p * ((mq - mp) * p^{-1} mod q)
+        return mq.subtract(mp).multiply(pInverseQ).mod(q).multiply(p).add(mp);
+    }
+
+    /**
+     * Writes the key in the binary layout read by readKey() (see PaillierKeyManager for the file)
+     * @param out stream to write to
+     * @param includePrivateKey true to also write lambda, u, and p, q and their CRT values when known
+     * @param includeTables true to also write the fixed base table when there is a fixed base
+     */
+    public void writeKey(DataOutputStream out, boolean includePrivateKey, boolean includeTables) throws IOException
+    {
+        out.writeInt(bitLength);
+        out.writeInt(s);
+        Utilities.writeBigInteger(out, n);
+        Utilities.writeBigInteger(out, g);
+        out.writeBoolean(h != null);
+        if (h != null)
+            Utilities.writeBigInteger(out, h);
+
+        boolean writePrivateKey = includePrivateKey && lambda != null;
+        out.writeBoolean(writePrivateKey);
+        if (writePrivateKey)
+        {
+            Utilities.writeBigInteger(out, lambda);
+            Utilities.writeBigInteger(out, u);
+
+            // Only the CRT values that need an exponentiation are kept, the rest are cheap to redo
+            out.writeBoolean(psquare != null);
+            if (psquare != null)
+            {
+                Utilities.writeBigInteger(out, p);
+                Utilities.writeBigInteger(out, q);
+                Utilities.writeBigInteger(out, hp);
+                Utilities.writeBigInteger(out, hq);
+            }
+        }
+
+        boolean writeTable = includeTables && h != null;
+        out.writeBoolean(writeTable);
+        if (writeTable)
+            getFixedBaseTable().write(out);
+    }
+
+    /**
+     * Reads a key written by writeKey()
+     * @param in stream to read from
+     * @return PaillierEncryption the key, able to decrypt if the private key was written
+     * @throws IOException if the stream ends early or does not hold a valid key
+     */
+    public static PaillierEncryption readKey(DataInputStream in) throws IOException
     {
-        BigInteger r;
+        int bitLength = in.readInt();
+        int s = in.readInt();
+        BigInteger n = Utilities.readBigInteger(in);
+        BigInteger g = Utilities.readBigInteger(in);
+        PaillierEncryption paillier = new PaillierEncryption(n, g, bitLength);
+
+        try
+        {
+            paillier.setDamgardJurik(s);
+        } catch (RuntimeException e)
+        {
+            throw new IOException("Paillier.readKey(DataInputStream): " + e.getMessage(), e);
+        }
+        if (in.readBoolean())
+            paillier.setFixedBase(Utilities.readBigInteger(in));
+
+        if (in.readBoolean())
+        {
+            paillier.lambda = Utilities.readBigInteger(in);
+            paillier.u = Utilities.readBigInteger(in);
+            if (in.readBoolean())
+            {
+                paillier.p = Utilities.readBigInteger(in);
+                paillier.q = Utilities.readBigInteger(in);
+                if (!paillier.p.multiply(paillier.q).equals(n))
+                    throw new IOException("Paillier.readKey(DataInputStream): p * q is not n");
+                paillier.precomputeCRT(Utilities.readBigInteger(in), Utilities.readBigInteger(in));
+            }
+        }
 
-        do
+        if (in.readBoolean())
         {
-            r = new BigInteger(bitLength, new Random());
+            FixedBaseExp table = FixedBaseExp.read(in);
+            if (!table.getBase().equals(paillier.h) || !table.getModulus().equals(paillier.getCiphertextModulus())
+                    || table.getMaxExponentBits() < paillier.getFixedBaseExponentBits())
+                throw new IOException("Paillier.readKey(DataInputStream): table does not belong to the fixed base");
+            paillier.fixedBase = table;
         }
-        while (r.compareTo(n) >= 0 || r.gcd(n).intValue() != 1);
 
-        return r;
+        return paillier;
+    }
+
+    /**
+     * @return String[] n, g and bitLength, in the order of public_key.txt and the 3 String constructor,
+     *         followed by s=... with Damgard-Jurik and h=... when the key has a fixed base
+     *         (read back with fromPublicKey())
+     */
+    public String[] getPublicKey()
+    {
+        List<String> values = new ArrayList<>();
+        values.add(n.toString());
+        values.add(g.toString());
+        values.add(Integer.toString(bitLength));
+        if (s > 1)
+            values.add("s=" + s);
+        if (h != null)
+            values.add("h=" + h);
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * @return String[] n, g, bitLength, lambda and u, in the order of the 5 String constructor
+     */
+    public String[] getPrivateKey()
+    {
+        return new String[]{n.toString(), g.toString(), Integer.toString(bitLength), lambda.toString(), u.toString()};
+    }
+
+    /**
+     * @return String the public key as one line of space separated values, as stored in public_key.txt
+     */
+    public String toPublicKeyString()
+    {
+        String[] values = getPublicKey();
+        StringBuilder builder = new StringBuilder(values[0]);
+        for (int i = 1; i < values.length; i++)
+        {
+            builder.append(' ').append(values[i]);
+        }
+        return builder.toString();
     }
 
-    // return a random integer in Z*_{n^2}
-    private BigInteger randomZStarNSquare()
+    /**
+     * @return String the SHA-256 hash of the public key in hex, used to tell keys apart
+     */
+    public String getFingerprint()
     {
-        BigInteger r;
+        if (fingerprint != null)
+            return fingerprint;
 
-        do
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(toPublicKeyString().getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < hash.length; i++)
+            {
+                builder.append(String.format("%02x", hash[i] & 0xff));
+            }
+            fingerprint = builder.toString();
+            return fingerprint;
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e)
         {
-            r = new BigInteger(bitLength * 2, new Random());
+            throw new RuntimeException(e);
         }
-        while (r.compareTo(nsquare) >= 0 || r.gcd(nsquare).intValue() != 1);
+    }
+
+    /**
+     * @return boolean true if g = n + 1, which encrypts with one multiplication instead of g^m
+     */
+    public boolean isGNPlusOne()
+    {
+        return gIsNPlusOne;
+    }
+
+    /**
+     * @return int the number of bits a plaintext can use while always staying below n (n^s with Damgard-Jurik)
+     */
+    public int getPlaintextBits()
+    {
+        return getPlaintextModulus().bitLength() - 1;
+    }
+
+    // return a random integer in Z_n
+    public BigInteger randomZN()
+    {
+        return randomSource.nextBelow(n, false);
+    }
 
-        return r;
+    // return a random integer in Z*_n
+    private BigInteger randomZStarN()
+    {
+        return randomSource.nextBelow(n, checkUnits);
     }
 }
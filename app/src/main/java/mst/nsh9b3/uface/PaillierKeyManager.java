@@ -0,0 +1,291 @@
+package mst.nsh9b3.uface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Creates Paillier keys and keeps them in compact binary key files.
+ *
+ * Primes are searched for on several threads at once, and the first distinct ones found are used.
+ * g is always n + 1, so no candidate for g has to be tested. A key file holds the public key and,
+ * optionally, the private key with its CRT values and the fixed base table. Loading it is just
+ * reading the numbers back, with no exponentiation.
+ *
+ * Nothing here depends on Android, so servers and test rigs can use it on a plain JVM.
+ */
+public class PaillierKeyManager
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::PaillierKeyManager";
+
+    // First bytes of every key file ("UFPK")
+    private static final int MAGIC = 0x5546504B;
+
+    // Layout of the rest of the file (2 added the hash of the fixed base table)
+    private static final int VERSION = 2;
+
+    // Odd primes below 2000, used to sieve out most candidates before a probable prime test
+    private static final int[] SMALL_PRIMES = smallPrimes(2000);
+
+    /**
+     * Generates a key pair using every processor
+     * @param bitLength number of bits in n, such as 2048 or 3072
+     * @param certainty the chance of a prime being composite is at most 2^-certainty
+     * @return PaillierEncryption the key holder's cryptosystem, with g = n + 1 and the CRT values
+     * @throws Exception if the search is interrupted or fails
+     */
+    public static PaillierEncryption generate(int bitLength, int certainty) throws Exception
+    {
+        return generate(bitLength, certainty, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param bitLength number of bits in n, such as 2048 or 3072
+     * @param certainty the chance of a prime being composite is at most 2^-certainty
+     * @param threads number of threads searching for primes
+     * @return PaillierEncryption the key holder's cryptosystem, with g = n + 1 and the CRT values
+     * @throws Exception if the search is interrupted or fails
+     */
+    public static PaillierEncryption generate(int bitLength, int certainty, int threads) throws Exception
+    {
+        if (bitLength < 128)
+            throw new IllegalArgumentException("PaillierKeyManager.generate: bitLength must be >= 128");
+
+        BigInteger[] primes = findPrimes(bitLength / 2, certainty, 2, threads, RandomSource.getDefault());
+        BigInteger n = primes[0].multiply(primes[1]);
+        return new PaillierEncryption(primes[0], primes[1], n.add(BigInteger.ONE));
+    }
+
+    /**
+     * Searches for distinct probable primes on several threads
+     * @param bits number of bits in each prime (at least 64)
+     * @param certainty the chance of a prime being composite is at most 2^-certainty
+     * @param count number of primes
+     * @param threads number of threads searching at the same time
+     * @param randomSource source of the candidates
+     * @return BigInteger[] count different primes, in the order they were found
+     * @throws Exception if the search is interrupted or fails
+     */
+    public static BigInteger[] findPrimes(final int bits, final int certainty, int count, int threads, final RandomSource randomSource) throws Exception
+    {
+        if (bits < 64)
+            throw new IllegalArgumentException("PaillierKeyManager.findPrimes: bits must be >= 64");
+
+        int workers = Math.max(1, threads);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        CompletionService<BigInteger> searches = new ExecutorCompletionService<>(executor);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Callable<BigInteger> search = new Callable<BigInteger>()
+        {
+            @Override
+            public BigInteger call()
+            {
+                return searchPrime(bits, certainty, randomSource, stop);
+            }
+        };
+
+        try
+        {
+            // Keep every thread busy with its own search, and start another one for every result
+            for (int i = 0; i < Math.max(workers, count); i++)
+            {
+                searches.submit(search);
+            }
+
+            List<BigInteger> primes = new ArrayList<>();
+            while (primes.size() < count)
+            {
+                BigInteger prime;
+                try
+                {
+                    prime = searches.take().get();
+                } catch (ExecutionException e)
+                {
+                    throw new Exception("PaillierKeyManager.findPrimes: " + e.getCause(), e.getCause());
+                }
+
+                if (prime != null && !primes.contains(prime))
+                    primes.add(prime);
+                searches.submit(search);
+            }
+            return primes.toArray(new BigInteger[count]);
+        } finally
+        {
+            // The searches still running see the flag before their next candidate and return
+            stop.set(true);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Looks for a prime from a random odd starting point upwards. Candidates divisible by a small
+     * prime are sieved out first, and stop is checked before every probable prime test so an
+     * unwanted search ends within one test.
+     * @param bits number of bits in the prime (at least 64)
+     * @param certainty the chance of the result being composite is at most 2^-certainty
+     * @param randomSource source of the starting points
+     * @param stop set to end the search early
+     * @return BigInteger a probable prime of exactly bits bits, or null if stopped
+     */
+    private static BigInteger searchPrime(int bits, int certainty, RandomSource randomSource, AtomicBoolean stop)
+    {
+        // Covers about 3 primes on average, as they are about 0.7 * bits apart
+        int length = Math.max(bits, 64);
+        boolean[] composite = new boolean[length];
+
+        while (!stop.get())
+        {
+            // Odd start with the top bit set, candidates are start + 2i
+            BigInteger start = randomSource.nextBigInteger(bits).setBit(bits - 1).setBit(0);
+
+            Arrays.fill(composite, false);
+            for (int i = 0; i < SMALL_PRIMES.length; i++)
+            {
+                int prime = SMALL_PRIMES[i];
+                int remainder = start.mod(BigInteger.valueOf(prime)).intValue();
+
+                // start + 2i = 0 mod prime when i = -remainder / 2 mod prime, and 1/2 = (prime + 1) / 2
+                int first = (int) ((long) (prime - remainder) % prime * ((prime + 1) / 2) % prime);
+                for (int j = first; j < length; j += prime)
+                {
+                    composite[j] = true;
+                }
+            }
+
+            for (int i = 0; i < length; i++)
+            {
+                if (stop.get() || Thread.currentThread().isInterrupted())
+                    return null;
+                if (composite[i])
+                    continue;
+
+                BigInteger candidate = start.add(BigInteger.valueOf(2L * i));
+                if (candidate.bitLength() != bits)
+                    break;
+                if (candidate.isProbablePrime(certainty))
+                    return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param limit exclusive upper bound
+     * @return int[] every odd prime below limit
+     */
+    private static int[] smallPrimes(int limit)
+    {
+        boolean[] composite = new boolean[limit];
+        List<Integer> primes = new ArrayList<>();
+        for (int i = 3; i < limit; i += 2)
+        {
+            if (composite[i])
+                continue;
+            primes.add(i);
+            for (int j = i * i; j < limit; j += 2 * i)
+            {
+                composite[j] = true;
+            }
+        }
+
+        int[] values = new int[primes.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = primes.get(i);
+        }
+        return values;
+    }
+
+    /**
+     * Writes a key file. The file is written next to its final location and then renamed, so a
+     * reader never sees a partly written key.
+     * @param paillier the key to save
+     * @param file the key file
+     * @param includePrivateKey true to also save lambda, u, p, q and their CRT values (only the key
+     *                          holder should ever do this)
+     * @param includeTables true to also save the fixed base table, which is large but saves building
+     *                      it again after loading
+     * @throws IOException if the file can not be written
+     */
+    public static void save(PaillierEncryption paillier, File file, boolean includePrivateKey, boolean includeTables) throws IOException
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            paillier.writeKey(out, includePrivateKey, includeTables);
+            out.close();
+            out = null;
+
+            if (!temporary.renameTo(file))
+                throw new IOException("PaillierKeyManager.save: could not rename " + temporary + " to " + file);
+        } finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                } catch (IOException e)
+                {
+                    // Already failing, the temporary file is deleted below
+                }
+            }
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Reads a key file written by save()
+     * @param file the key file
+     * @return PaillierEncryption the key, able to decrypt if the private key was saved
+     * @throws IOException if the file can not be read or is not a key file
+     */
+    public static PaillierEncryption load(File file) throws IOException
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC)
+                throw new IOException("PaillierKeyManager.load: " + file + " is not a key file");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("PaillierKeyManager.load: unsupported key file version " + version);
+
+            return PaillierEncryption.readKey(in);
+        } finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                } catch (IOException e)
+                {
+                    // Everything needed was already read
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package mst.nsh9b3.uface;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Cryptographically secure random numbers for PaillierEncryption.
+ * Every thread gets its own SecureRandom, seeded once by the platform, and draws from it in large
+ * blocks that are handed out piece by piece. Threads never share a generator, so encrypting on
+ * several threads needs no locking, and a draw costs a copy out of the block instead of a call into
+ * the provider.
+ */
+public class RandomSource
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::RandomSource";
+
+    // Source used when none is given
+    private static final RandomSource defaultSource = new RandomSource(4096);
+
+    // Number of random bytes drawn from the generator at a time
+    private final int bufferSize;
+
+    // Generator and unused random bytes of each thread
+    private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>()
+    {
+        @Override
+        protected Buffer initialValue()
+        {
+            return new Buffer(new SecureRandom(), bufferSize);
+        }
+    };
+
+    /**
+     * Generator and block of random bytes belonging to one thread
+     */
+    private static class Buffer
+    {
+        final SecureRandom generator;
+        final byte[] bytes;
+        int position;
+
+        Buffer(SecureRandom generator, int size)
+        {
+            this.generator = generator;
+            this.bytes = new byte[size];
+            this.position = size;
+        }
+    }
+
+    /**
+     * @param bufferSize number of random bytes drawn from each thread's generator at a time
+     */
+    public RandomSource(int bufferSize)
+    {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("RandomSource: bufferSize must be >= 1");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return RandomSource the source shared by every PaillierEncryption that has not been given another
+     */
+    public static RandomSource getDefault()
+    {
+        return defaultSource;
+    }
+
+    /**
+     * Fills part of an array with random bytes
+     * @param out receives the bytes
+     * @param offset index of the first byte to fill
+     * @param length number of bytes to fill
+     */
+    public void nextBytes(byte[] out, int offset, int length)
+    {
+        Buffer buffer = buffers.get();
+
+        // Large requests go straight to the generator
+        if (length >= buffer.bytes.length)
+        {
+            byte[] bytes = new byte[length];
+            buffer.generator.nextBytes(bytes);
+            System.arraycopy(bytes, 0, out, offset, length);
+            return;
+        }
+
+        while (length > 0)
+        {
+            if (buffer.position == buffer.bytes.length)
+            {
+                buffer.generator.nextBytes(buffer.bytes);
+                buffer.position = 0;
+            }
+
+            int count = Math.min(length, buffer.bytes.length - buffer.position);
+            System.arraycopy(buffer.bytes, buffer.position, out, offset, count);
+
+            // Never hand out the same bytes twice
+            for (int i = buffer.position; i < buffer.position + count; i++)
+            {
+                buffer.bytes[i] = 0;
+            }
+
+            buffer.position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * @return int a uniformly random int
+     */
+    public int nextInt()
+    {
+        byte[] bytes = new byte[4];
+        nextBytes(bytes, 0, 4);
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+
+    /**
+     * @param bits number of bits
+     * @return BigInteger a uniformly random value in [0, 2^bits)
+     */
+    public BigInteger nextBigInteger(int bits)
+    {
+        return nextBigIntegers(bits, 1)[0];
+    }
+
+    /**
+     * Draws many values with one read of the random bytes
+     * @param bits number of bits in each value
+     * @param count number of values
+     * @return BigInteger[] uniformly random values in [0, 2^bits)
+     */
+    public BigInteger[] nextBigIntegers(int bits, int count)
+    {
+        int length = (bits + 7) / 8;
+        byte[] bytes = new byte[length * count];
+        nextBytes(bytes, 0, bytes.length);
+
+        // Clear the bits above the requested length in the first (most significant) byte
+        int mask = 0xff >>> (length * 8 - bits);
+
+        BigInteger[] values = new BigInteger[count];
+        byte[] magnitude = new byte[length];
+        for (int i = 0; i < count; i++)
+        {
+            System.arraycopy(bytes, i * length, magnitude, 0, length);
+            if (length > 0)
+                magnitude[0] &= mask;
+            values[i] = new BigInteger(1, magnitude);
+        }
+
+        return values;
+    }
+
+    /**
+     * Draws many values in [1, bound) at once
+     * @param bound the exclusive upper bound, such as n
+     * @param count number of values
+     * @param checkUnits true to also reject values sharing a factor with bound (a gcd for each value).
+     *                   For an RSA modulus such a value is only found with negligible probability.
+     * @return BigInteger[] uniformly random values in [1, bound), or in Z*_bound when checkUnits is true
+     */
+    public BigInteger[] nextBelow(BigInteger bound, int count, boolean checkUnits)
+    {
+        int bits = bound.bitLength();
+        BigInteger[] values = new BigInteger[count];
+        int filled = 0;
+        while (filled < count)
+        {
+            // Candidates are rejected less than half of the time so draw what is still needed
+            BigInteger[] candidates = nextBigIntegers(bits, count - filled);
+            for (int i = 0; i < candidates.length; i++)
+            {
+                BigInteger r = candidates[i];
+                if (r.signum() <= 0 || r.compareTo(bound) >= 0)
+                    continue;
+                if (checkUnits && !r.gcd(bound).equals(BigInteger.ONE))
+                    continue;
+                values[filled++] = r;
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * @param bound the exclusive upper bound
+     * @param checkUnits true to also reject values sharing a factor with bound
+     * @return BigInteger a uniformly random value in [1, bound), or in Z*_bound when checkUnits is true
+     */
+    public BigInteger nextBelow(BigInteger bound, boolean checkUnits)
+    {
+        return nextBelow(bound, 1, checkUnits)[0];
+    }
+}
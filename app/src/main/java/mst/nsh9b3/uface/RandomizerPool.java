@@ -0,0 +1,252 @@
+package mst.nsh9b3.uface;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+
+/**
+ * Precomputes the r^n mod n^2 part of Paillier encryption on a low priority background thread.
+ * It does not depend on the message, so it can be done while the user is still framing their face;
+ * encrypting with a value from the pool then takes a single modular multiplication.
+ *
+ * Unused values are written to app-private storage under the fingerprint of the public key by the
+ * background thread once the pool is stopped, and the file is deleted as soon as it is read back so no value is ever used twice.
+ * One pool runs per process. TakePicture starts it and stops it when it is destroyed; Authenticate
+ * starts it again (reloading the saved values) and stops it when it is done, even if encrypting fails.
+ */
+public class RandomizerPool
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::RandomizerPool";
+
+    // Number of values kept ready by default (enough for a few authentications)
+    public static final int DEFAULT_CAPACITY = 64;
+
+    // Pool running for the current public key
+    private static RandomizerPool current;
+
+    // Cryptosystem of the public key the values belong to
+    private final PaillierEncryption paillier;
+
+    // File the unused values are saved to
+    private final File file;
+
+    // Largest number of values computed ahead of time
+    private final int capacity;
+
+    // Values ready to be used (guarded by this)
+    private final ArrayDeque<BigInteger> randomizers = new ArrayDeque<>();
+
+    // Thread filling the pool, null when stopped
+    private Thread thread;
+
+    private RandomizerPool(File directory, PaillierEncryption paillier, int capacity)
+    {
+        this.paillier = paillier;
+        this.capacity = capacity;
+        this.file = new File(directory, "randomizers_" + paillier.getFingerprint() + ".txt");
+    }
+
+    /**
+     * Starts filling the pool for a public key, reusing the running pool if it is for the same key.
+     * A pool for a different key is stopped (and saved) first.
+     * @param directory app-private directory the unused values are kept in, such as getFilesDir()
+     * @param paillier cryptosystem of the public key
+     * @param capacity largest number of values computed ahead of time
+     * @return RandomizerPool the running pool
+     */
+    public static synchronized RandomizerPool start(File directory, PaillierEncryption paillier, int capacity)
+    {
+        if (current != null && current.paillier.getFingerprint().equals(paillier.getFingerprint()))
+        {
+            // Pick up anything saved by an earlier stop()
+            current.load();
+            current.startThread();
+            return current;
+        }
+
+        if (current != null)
+            current.stop();
+
+        current = new RandomizerPool(directory, paillier, capacity);
+        current.load();
+        current.startThread();
+        return current;
+    }
+
+    /**
+     * Stops the running pool, if any. Returns at once; the background thread saves the values when it
+     * exits so the next start() for the same key picks them up.
+     */
+    public static void stopCurrent()
+    {
+        RandomizerPool pool;
+        synchronized (RandomizerPool.class)
+        {
+            pool = current;
+        }
+        if (pool != null)
+            pool.stop();
+    }
+
+    /**
+     * Removes a value from the pool. It is never handed out again.
+     * @return BigInteger r^n mod n^2 for a random r, or null if the pool is empty
+     */
+    public synchronized BigInteger take()
+    {
+        BigInteger randomizer = randomizers.poll();
+
+        // Wake the thread up to replace it
+        notifyAll();
+        return randomizer;
+    }
+
+    public synchronized int size()
+    {
+        return randomizers.size();
+    }
+
+    private synchronized void startThread()
+    {
+        if (thread != null)
+            return;
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // Stay out of the way of the camera and face detection
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                fill();
+
+                // Save unless start() has already handed the values to a new thread
+                synchronized (RandomizerPool.this)
+                {
+                    if (thread == null)
+                        save();
+                }
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * Keeps the pool full until the thread is interrupted
+     */
+    private void fill()
+    {
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                synchronized (this)
+                {
+                    while (randomizers.size() >= capacity)
+                    {
+                        wait();
+                    }
+                }
+
+                // Compute outside of the lock so take() is never blocked by an exponentiation
+                BigInteger randomizer = paillier.newRandomizer();
+                synchronized (this)
+                {
+                    randomizers.add(randomizer);
+                }
+            }
+        } catch (InterruptedException e)
+        {
+            // Stopped
+        }
+    }
+
+    /**
+     * Stops the background thread without waiting for it. The exponentiation it is in the middle of
+     * can not be interrupted, so the thread saves the unused values itself once it has finished it.
+     */
+    public void stop()
+    {
+        Thread stopping;
+        synchronized (this)
+        {
+            stopping = thread;
+            thread = null;
+        }
+
+        if (stopping != null)
+            stopping.interrupt();
+    }
+
+    /**
+     * Writes the unused values to the file and empties the pool (called on the background thread)
+     */
+    private synchronized void save()
+    {
+        if (randomizers.isEmpty())
+            return;
+
+        BufferedWriter writer = null;
+        try
+        {
+            writer = new BufferedWriter(new FileWriter(file));
+            for (BigInteger randomizer : randomizers)
+            {
+                writer.write(randomizer + " ");
+            }
+            randomizers.clear();
+        } catch (IOException e)
+        {
+            Log.e(TAG, "Error: " + e);
+            file.delete();
+        } finally
+        {
+            try
+            {
+                if (writer != null)
+                {
+                    writer.close();
+                }
+            } catch (IOException e)
+            {
+                Log.e(TAG, "Error: " + e);
+            }
+        }
+    }
+
+    /**
+     * Reads the values saved for this public key and deletes the file
+     */
+    private synchronized void load()
+    {
+        if (!file.exists())
+            return;
+
+        String[] values = Utilities.readValuesInFile(file.getAbsolutePath());
+
+        // Delete before using any of them so a crash can not lead to reuse
+        if (!file.delete())
+            Log.e(TAG, "Could not delete " + file);
+
+        if (values == null)
+            return;
+        for (int i = 0; i < values.length && randomizers.size() < capacity; i++)
+        {
+            try
+            {
+                randomizers.add(new BigInteger(values[i]));
+            } catch (NumberFormatException e)
+            {
+                Log.e(TAG, "Error: " + e);
+            }
+        }
+        Log.i(TAG, "Loaded " + randomizers.size() + " randomizers");
+    }
+}
@@ -0,0 +1,338 @@
+package mst.nsh9b3.uface;
+
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the grid histogram of a fixed size window inside a larger image up to date as the
+ * window moves. When the window shifts by less than a section, each section's histogram is
+ * updated by removing the rows and columns that left it and adding the ones that entered it,
+ * instead of computing the whole window again.
+ *
+ * Every pixel of the window that has all of its neighbors in the image is counted, so pixels at
+ * the edge of the window are included when the image extends past them.
+ * The histograms are also kept across frames of the same size: setFrame() compares the new frame
+ * with the last one and only recounts the LBP values whose neighborhood changed, so a mostly still
+ * camera costs a comparison of the frames instead of a full count. When more than half of the
+ * window changed the next moveTo() counts every section again.
+ */
+public class SlidingLBP
+{
+    // Current class description for log events
+    private static final String TAG = "uFace::SlidingLBP";
+
+    // Layout of the grid, operator and mapping
+    private final LBPConfig config;
+
+    // Dimensions of the window
+    private final int windowWidth;
+    private final int windowHeight;
+
+    // Buffer the OpenCV image is copied into
+    private byte[] buffer;
+
+    // Copy of the current image stored row by row, compared against the next frame
+    private byte[] pixels;
+    private int width;
+    private int height;
+
+    // Top left corner of the window, valid is false until the histograms match the current image
+    private int windowX;
+    private int windowY;
+    private boolean valid = false;
+
+    // Histogram of each section one after another
+    private final int[] histograms;
+
+    // Scratch space for the LBP values of one row
+    private int[] codes;
+
+    // For each row, the columns [dirtyLeft, dirtyRight) whose LBP values changed with the last frame
+    private int[] dirtyLeft;
+    private int[] dirtyRight;
+
+    /**
+     * @param config layout of the grid, operator and mapping
+     * @param windowWidth number of columns in the window
+     * @param windowHeight number of rows in the window
+     */
+    public SlidingLBP(LBPConfig config, int windowWidth, int windowHeight)
+    {
+        this.config = config;
+        this.windowWidth = windowWidth;
+        this.windowHeight = windowHeight;
+        histograms = new int[config.getCellCount() * config.getMapping().getBins()];
+    }
+
+    /**
+     * Sets the image the window moves over from an 8-bit single channel OpenCV image
+     * @param frame the image
+     */
+    public void setFrame(Mat frame)
+    {
+        Mat source = frame;
+        if (!frame.isContinuous())
+            source = frame.clone();
+
+        int rows = source.rows();
+        int cols = source.cols();
+        if (buffer == null || buffer.length != rows * cols)
+            buffer = new byte[rows * cols];
+
+        // Read every pixel with one call
+        source.get(0, 0, buffer);
+
+        if (source != frame)
+            source.release();
+
+        setFrame(buffer, cols, rows);
+    }
+
+    /**
+     * Sets the image the window moves over. The pixels are copied, so the caller can reuse the array.
+     * If the previous frame had the same size the histograms of the window are updated for the pixels
+     * that changed.
+     * @param pixels the image stored row by row with one byte per pixel
+     * @param width number of columns in the image
+     * @param height number of rows in the image
+     */
+    public void setFrame(byte[] pixels, int width, int height)
+    {
+        if (width < windowWidth || height < windowHeight)
+            throw new IllegalArgumentException("SlidingLBP.setFrame: image is smaller than the window");
+
+        LBPOperator operator = config.getOperator();
+        if (this.pixels == null || this.width != width || this.height != height)
+        {
+            this.pixels = new byte[width * height];
+            this.width = width;
+            this.height = height;
+            codes = new int[width];
+            dirtyLeft = new int[height];
+            dirtyRight = new int[height];
+            valid = false;
+        }
+        else if (valid)
+        {
+            if (findChanges(pixels) * 2 > windowWidth * windowHeight)
+                valid = false;
+            else
+            {
+                // Remove the old values while the operator still holds the old image
+                countChanges(-1);
+            }
+        }
+
+        System.arraycopy(pixels, 0, this.pixels, 0, pixels.length);
+        operator.prepare(this.pixels, width, height);
+
+        if (valid)
+            countChanges(1);
+    }
+
+    /**
+     * Marks the LBP values that depend on a pixel that differs between the current image and the
+     * new frame. A value depends on the pixels up to getBorder() away from it.
+     * @param frame the new frame, the same size as the current image
+     * @return int number of marked values inside the window
+     */
+    private int findChanges(byte[] frame)
+    {
+        int radius = config.getOperator().getBorder();
+
+        // First and last changed column of each row, left > right when the row is unchanged
+        int[] changedLeft = new int[height];
+        int[] changedRight = new int[height];
+        for (int row = 0; row < height; row++)
+        {
+            int start = row * width;
+            int left = 0;
+            while (left < width && frame[start + left] == pixels[start + left])
+            {
+                left++;
+            }
+            int right = width - 1;
+            while (right > left && frame[start + right] == pixels[start + right])
+            {
+                right--;
+            }
+            changedLeft[row] = left;
+            changedRight[row] = right;
+        }
+
+        int marked = 0;
+        for (int row = 0; row < height; row++)
+        {
+            int left = width;
+            int right = 0;
+            for (int source = Math.max(row - radius, 0); source <= Math.min(row + radius, height - 1); source++)
+            {
+                if (changedLeft[source] <= changedRight[source])
+                {
+                    left = Math.min(left, changedLeft[source] - radius);
+                    right = Math.max(right, changedRight[source] + radius + 1);
+                }
+            }
+            dirtyLeft[row] = Math.max(left, 0);
+            dirtyRight[row] = Math.min(right, width);
+
+            if (row >= windowY && row < windowY + windowHeight)
+                marked += Math.max(0, Math.min(dirtyRight[row], windowX + windowWidth) - Math.max(dirtyLeft[row], windowX));
+        }
+        return marked;
+    }
+
+    /**
+     * Adds or removes the marked LBP values of the current image in every section of the window
+     * @param amount 1 to add the values or -1 to remove them
+     */
+    private void countChanges(int amount)
+    {
+        int gridRows = config.getGridRows();
+        int gridCols = config.getGridCols();
+        int bins = config.getMapping().getBins();
+
+        int index = 0;
+        for (int gridRow = 0; gridRow < gridRows; gridRow++)
+        {
+            int top = windowY + config.cellStart(gridRow, gridRows, windowHeight);
+            int bottom = windowY + config.cellEnd(gridRow, gridRows, windowHeight);
+            for (int gridCol = 0; gridCol < gridCols; gridCol++, index++)
+            {
+                int left = windowX + config.cellStart(gridCol, gridCols, windowWidth);
+                int right = windowX + config.cellEnd(gridCol, gridCols, windowWidth);
+                for (int row = top; row < bottom; row++)
+                {
+                    int start = Math.max(left, dirtyLeft[row]);
+                    int end = Math.min(right, dirtyRight[row]);
+                    if (start < end)
+                        count(row, start, row + 1, end, index * bins, amount);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the window and updates the histogram of every section
+     * @param x column of the top left corner of the window
+     * @param y row of the top left corner of the window
+     */
+    public void moveTo(int x, int y)
+    {
+        if (x < 0 || y < 0 || x + windowWidth > width || y + windowHeight > height)
+            throw new IllegalArgumentException("SlidingLBP.moveTo: window must be inside the image");
+
+        int gridRows = config.getGridRows();
+        int gridCols = config.getGridCols();
+        int bins = config.getMapping().getBins();
+        int dx = x - windowX;
+        int dy = y - windowY;
+
+        int index = 0;
+        for (int row = 0; row < gridRows; row++)
+        {
+            int top = config.cellStart(row, gridRows, windowHeight);
+            int bottom = config.cellEnd(row, gridRows, windowHeight);
+            for (int column = 0; column < gridCols; column++, index++)
+            {
+                int left = config.cellStart(column, gridCols, windowWidth);
+                int right = config.cellEnd(column, gridCols, windowWidth);
+                int offset = index * bins;
+
+                if (!valid || Math.abs(dx) >= right - left || Math.abs(dy) >= bottom - top)
+                {
+                    // Too far to update, count the whole section again
+                    Arrays.fill(histograms, offset, offset + bins, 0);
+                    count(y + top, x + left, y + bottom, x + right, offset, 1);
+                    continue;
+                }
+
+                // Old position of the section in the image
+                int oldTop = windowY + top;
+                int oldBottom = windowY + bottom;
+                int oldLeft = windowX + left;
+                int oldRight = windowX + right;
+
+                // Slide across first, keeping the old rows
+                int newLeft = oldLeft + dx;
+                int newRight = oldRight + dx;
+                if (dx > 0)
+                {
+                    count(oldTop, oldLeft, oldBottom, newLeft, offset, -1);
+                    count(oldTop, oldRight, oldBottom, newRight, offset, 1);
+                }
+                else if (dx < 0)
+                {
+                    count(oldTop, newRight, oldBottom, oldRight, offset, -1);
+                    count(oldTop, newLeft, oldBottom, oldLeft, offset, 1);
+                }
+
+                // Then slide down or up using the new columns
+                int newTop = oldTop + dy;
+                int newBottom = oldBottom + dy;
+                if (dy > 0)
+                {
+                    count(oldTop, newLeft, newTop, newRight, offset, -1);
+                    count(oldBottom, newLeft, newBottom, newRight, offset, 1);
+                }
+                else if (dy < 0)
+                {
+                    count(newBottom, newLeft, oldBottom, newRight, offset, -1);
+                    count(newTop, newLeft, oldTop, newRight, offset, 1);
+                }
+            }
+        }
+
+        windowX = x;
+        windowY = y;
+        valid = true;
+    }
+
+    /**
+     * Adds or removes the LBP values of a rectangle of the image to one section's histogram.
+     * Pixels without all of their neighbors are skipped.
+     * @param top first row
+     * @param left first column
+     * @param bottom row after the last row
+     * @param right column after the last column
+     * @param offset index of the section's histogram in histograms
+     * @param amount 1 to add the pixels or -1 to remove them
+     */
+    private void count(int top, int left, int bottom, int right, int offset, int amount)
+    {
+        LBPOperator operator = config.getOperator();
+        int border = operator.getBorder();
+        top = Math.max(top, border);
+        left = Math.max(left, border);
+        bottom = Math.min(bottom, height - border);
+        right = Math.min(right, width - border);
+
+        int[] table = config.getMapping().getTable();
+        for (int row = top; row < bottom && left < right; row++)
+        {
+            operator.computeRow(pixels, width, row, left, right, codes);
+            for (int i = 0; i < right - left; i++)
+            {
+                histograms[offset + table[codes[i]]] += amount;
+            }
+        }
+    }
+
+    /**
+     * Copies the histogram of every section into a caller supplied array
+     * @param features receives the histogram of each section one after another
+     * @param offset index in features of the first value
+     */
+    public void getHistogram(int[] features, int offset)
+    {
+        if (!valid)
+            throw new IllegalStateException("SlidingLBP.getHistogram: moveTo has not been called for this image");
+        System.arraycopy(histograms, 0, features, offset, histograms.length);
+    }
+
+    public int getFeatureLength()
+    {
+        return histograms.length;
+    }
+}
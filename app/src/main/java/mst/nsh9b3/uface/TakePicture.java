@@ -145,6 +145,33 @@ public class TakePicture extends Activity implements CameraBridgeViewBase.CvCame
         cameraView.setCvCameraViewListener(this);
         cameraView.enableView();
         cameraView.setOnTouchListener(this);
+
+        // Precompute encryption randomness while the user frames their face
+        startRandomizerPool();
+    }
+
+    /**
+     * Starts the RandomizerPool for the public key downloaded during the last authentication, if any
+     */
+    private void startRandomizerPool()
+    {
+        File publicKeyFile = new File(getExternalCacheDir(), "public_key.txt");
+        if (!publicKeyFile.exists())
+            return;
+
+        String[] publicKey = Utilities.readValuesInFile(publicKeyFile.getAbsolutePath());
+        if (publicKey == null || publicKey.length < 3)
+            return;
+
+        try
+        {
+            PaillierEncryption paillier = PaillierEncryption.fromPublicKey(publicKey);
+            RandomizerPool.start(getFilesDir(), paillier, RandomizerPool.DEFAULT_CAPACITY);
+        } catch (RuntimeException e)
+        {
+            // A malformed key (bad numbers, s= or g) only costs the precomputation
+            Log.e(TAG, "Error: " + e);
+        }
     }
 
     @Override
@@ -179,6 +206,9 @@ public class TakePicture extends Activity implements CameraBridgeViewBase.CvCame
         super.onDestroy();
         if (cameraView != null)
             cameraView.disableView();
+
+        // Stop precomputing and save the values, Authenticate reloads them if the user authenticates
+        RandomizerPool.stopCurrent();
     }
 
     @Override
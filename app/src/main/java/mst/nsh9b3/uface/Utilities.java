@@ -1,7 +1,11 @@
 package mst.nsh9b3.uface;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
 
 /**
  * Created by nick on 1/23/16.
@@ -27,4 +31,30 @@ public class Utilities
 
         return tokens;
     }
+
+    /**
+     * Writes a value as its length in bytes followed by its two's complement bytes
+     * @param out stream to write to
+     * @param value the value
+     */
+    public static void writeBigInteger(DataOutputStream out, BigInteger value) throws IOException
+    {
+        byte[] bytes = value.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param in stream written by writeBigInteger()
+     * @return BigInteger the value
+     */
+    public static BigInteger readBigInteger(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 1 || length > (1 << 20))
+            throw new IOException("Utilities.readBigInteger: bad length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new BigInteger(bytes);
+    }
 }
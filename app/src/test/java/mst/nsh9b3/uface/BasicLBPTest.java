@@ -0,0 +1,263 @@
+package mst.nsh9b3.uface;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that the SWAR BasicLBP and LBPExtractor give exactly the values of the original
+ * per-pixel loop, so templates stored before them stay comparable.
+ */
+public class BasicLBPTest
+{
+    // Grid and bins of the original JavaLBP
+    private static final int GRID = 4;
+    private static final int BINS = 59;
+
+    /**
+     * Image with long runs of equal pixels and the extreme values, so ties and the high bit of every
+     * byte are compared as often as random pixels
+     */
+    private static byte[] image(int width, int height, long seed)
+    {
+        Random random = new Random(seed);
+        byte[] pixels = new byte[width * height];
+        for (int i = 0; i < pixels.length; i++)
+        {
+            switch (random.nextInt(4))
+            {
+                case 0:
+                    pixels[i] = (byte) random.nextInt(256);
+                    break;
+                case 1:
+                    pixels[i] = i > 0 ? pixels[i - 1] : 0;
+                    break;
+                case 2:
+                    pixels[i] = random.nextBoolean() ? (byte) 0 : (byte) 255;
+                    break;
+                default:
+                    pixels[i] = (byte) (127 + random.nextInt(3));
+                    break;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * The comparisons of the original JavaLBP, one pixel at a time
+     */
+    private static int scalarCode(byte[] pixels, int width, int row, int col)
+    {
+        int center = pixels[row * width + col] & 0xFF;
+        int topLeft = pixels[(row - 1) * width + col - 1] & 0xFF;
+        int top = pixels[(row - 1) * width + col] & 0xFF;
+        int topRight = pixels[(row - 1) * width + col + 1] & 0xFF;
+        int midRight = pixels[row * width + col + 1] & 0xFF;
+        int botRight = pixels[(row + 1) * width + col + 1] & 0xFF;
+        int bot = pixels[(row + 1) * width + col] & 0xFF;
+        int botLeft = pixels[(row + 1) * width + col - 1] & 0xFF;
+        int midLeft = pixels[row * width + col - 1] & 0xFF;
+
+        int value = 0;
+        if (topLeft >= center)
+            value |= 1 << 7;
+        if (top >= center)
+            value |= 1 << 6;
+        if (topRight >= center)
+            value |= 1 << 5;
+        if (midRight >= center)
+            value |= 1 << 4;
+        if (botRight >= center)
+            value |= 1 << 3;
+        if (bot >= center)
+            value |= 1 << 2;
+        if (botLeft >= center)
+            value |= 1 << 1;
+        if (midLeft >= center)
+            value |= 1;
+        return value;
+    }
+
+    /**
+     * The uniform pattern keys of the original JavaLBP
+     */
+    private static HashMap<Integer, Integer> baselineKeys()
+    {
+        HashMap<Integer, Integer> keys = new HashMap<>();
+        int count = 0;
+        for (int i = 0; i < 256; i++)
+        {
+            byte value = (byte) i;
+            int transitions = 0;
+            int last = value & 1;
+            for (int k = 1; k < 8; k++)
+            {
+                if (((value >> k) & 1) != last)
+                {
+                    last = ((value >> k) & 1);
+                    transitions++;
+                    if (transitions > 2)
+                        break;
+                }
+            }
+            if (transitions <= 2)
+                keys.put(i, count++);
+        }
+        return keys;
+    }
+
+    /**
+     * The histogram loop of the original JavaLBP (4x4 grid, edges skipped only at the image border)
+     */
+    private static int[] baselineHistogram(byte[] pixels, int width, int height)
+    {
+        HashMap<Integer, Integer> keys = baselineKeys();
+        int cellWidth = width / GRID;
+        int cellHeight = height / GRID;
+        int[] features = new int[GRID * GRID * BINS];
+
+        for (int gridRow = 0; gridRow < GRID; gridRow++)
+        {
+            for (int gridCol = 0; gridCol < GRID; gridCol++)
+            {
+                int startRow = Math.max(gridRow * cellHeight, 1);
+                int endRow = Math.min((gridRow + 1) * cellHeight, height - 1);
+                int startCol = Math.max(gridCol * cellWidth, 1);
+                int endCol = Math.min((gridCol + 1) * cellWidth, width - 1);
+                int offset = (gridRow * GRID + gridCol) * BINS;
+
+                for (int col = startCol; col < endCol; col++)
+                {
+                    for (int row = startRow; row < endRow; row++)
+                    {
+                        Integer bin = keys.get(scalarCode(pixels, width, row, col));
+                        features[offset + (bin != null ? bin : BINS - 1)]++;
+                    }
+                }
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Reference for any grid: the scalar comparisons inside the section bounds of the config
+     */
+    private static int[] referenceHistogram(byte[] pixels, int width, int height, LBPConfig config)
+    {
+        int[] table = config.getMapping().getTable();
+        int bins = config.getMapping().getBins();
+        int[] features = new int[config.getCellCount() * bins];
+
+        for (int index = 0; index < config.getCellCount(); index++)
+        {
+            int gridRow = index / config.getGridCols();
+            int gridCol = index % config.getGridCols();
+            int startRow = Math.max(config.cellStart(gridRow, config.getGridRows(), height), 1);
+            int endRow = Math.min(config.cellEnd(gridRow, config.getGridRows(), height), height - 1);
+            int startCol = Math.max(config.cellStart(gridCol, config.getGridCols(), width), 1);
+            int endCol = Math.min(config.cellEnd(gridCol, config.getGridCols(), width), width - 1);
+
+            for (int row = startRow; row < endRow; row++)
+            {
+                for (int col = startCol; col < endCol; col++)
+                {
+                    features[index * bins + table[scalarCode(pixels, width, row, col)]]++;
+                }
+            }
+        }
+        return features;
+    }
+
+    @Test
+    public void computeRow_matchesScalarForEveryWidthAndStart() throws Exception
+    {
+        BasicLBP operator = new BasicLBP();
+        for (int width = 3; width <= 42; width++)
+        {
+            int height = 5;
+            byte[] pixels = image(width, height, width);
+            int[] codes = new int[width];
+
+            for (int row = 1; row < height - 1; row++)
+            {
+                for (int start = 1; start < width - 1; start++)
+                {
+                    operator.computeRow(pixels, width, row, start, width - 1, codes);
+
+                    int[] expected = new int[width - 1 - start];
+                    int[] actual = new int[expected.length];
+                    for (int i = 0; i < expected.length; i++)
+                    {
+                        expected[i] = scalarCode(pixels, width, row, start + i);
+                        actual[i] = codes[i];
+                    }
+                    assertArrayEquals("width " + width + " row " + row + " start " + start, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void extract_matchesBaselineOnDefaultGrid() throws Exception
+    {
+        int width = TakePicture.IMAGEWIDTH;
+        int height = TakePicture.IMAGEHEIGHT;
+        byte[] pixels = image(width, height, 42);
+        int[] expected = baselineHistogram(pixels, width, height);
+
+        LBPExtractor extractor = new LBPExtractor(new LBPConfig());
+        int[] actual = new int[extractor.getFeatureLength()];
+        extractor.extract(pixels, width, height, actual, 0);
+        assertArrayEquals(expected, actual);
+
+        LBPConfig parallel = new LBPConfig();
+        parallel.setParallelism(4);
+        LBPExtractor parallelExtractor = new LBPExtractor(parallel);
+        try
+        {
+            int[] parallelActual = new int[parallelExtractor.getFeatureLength()];
+            parallelExtractor.extract(pixels, width, height, parallelActual, 0);
+            assertArrayEquals(expected, parallelActual);
+        } finally
+        {
+            parallelExtractor.shutdown();
+        }
+    }
+
+    @Test
+    public void extract_matchesReferenceOnOddSizesSequentialAndParallel() throws Exception
+    {
+        int[][] sizes = {{3, 3}, {9, 7}, {17, 31}, {101, 77}, {255, 129}};
+        for (int s = 0; s < sizes.length; s++)
+        {
+            int width = sizes[s][0];
+            int height = sizes[s][1];
+            byte[] pixels = image(width, height, 1000 + s);
+
+            for (int parallelism = 1; parallelism <= 3; parallelism += 2)
+            {
+                LBPConfig config = new LBPConfig(3, 5);
+                config.setOverlap(s % 2);
+                config.setParallelism(parallelism);
+                int[] expected = referenceHistogram(pixels, width, height, config);
+
+                LBPExtractor extractor = new LBPExtractor(config);
+                try
+                {
+                    int[] actual = new int[extractor.getFeatureLength() + 3];
+                    extractor.extract(pixels, width, height, actual, 3);
+
+                    int[] shifted = new int[expected.length];
+                    System.arraycopy(actual, 3, shifted, 0, shifted.length);
+                    assertArrayEquals(width + "x" + height + " parallelism " + parallelism, expected, shifted);
+                } finally
+                {
+                    extractor.shutdown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package mst.nsh9b3.uface;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that BitPacker packs the histogram byte for byte like the original
+ * JavaLBP.histToByteMatrix, so templates stored before it stay comparable.
+ */
+public class BitPackerTest
+{
+    // Bins of the original 4x4 grid of 59 bins, and the bits of one bin of a 64x64 section
+    private static final int VALUES = 16 * 59;
+    private static final int BIN_BITS = 13;
+
+    private static int[] histogram(int count, int bits, long seed)
+    {
+        Random random = new Random(seed);
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            values[i] = (int) (random.nextInt() & ((1L << bits) - 1));
+        }
+        return values;
+    }
+
+    /**
+     * The original JavaLBP.histToByteMatrix for a key of numberOfBits bits and bins of maxBits bits
+     */
+    private static byte[][] baselinePack(int[] intHist, int numberOfBits, int maxBits)
+    {
+        int bytesNeeded = numberOfBits / 8;
+        float numInts = numberOfBits / (float) maxBits;
+        if (numInts == (int) numInts)
+            numInts--;
+
+        int matrixSize = (int) Math.ceil((float) (intHist.length / Math.floor(numInts)));
+        byte[][] byteMatrix = new byte[matrixSize][bytesNeeded];
+        byte[] byteArray = new byte[bytesNeeded];
+
+        int bitPos;
+        boolean firstEmpty = false;
+        int skipBits = (numberOfBits % maxBits);
+        if (skipBits > 8)
+        {
+            firstEmpty = true;
+            bitPos = (16 - skipBits) - 1;
+        }
+        else if (skipBits == 8 || skipBits == 0)
+        {
+            firstEmpty = true;
+            bitPos = 7;
+        }
+        else
+        {
+            bitPos = (8 - skipBits) - 1;
+        }
+
+        byte andByte = 0x01;
+        byte nextByte = 0x00;
+        int arrayIndex = 0;
+        int matrixIndex = 0;
+        boolean isDone = false;
+        int i = 0;
+        while (!isDone)
+        {
+            int value = 0;
+            if (i < intHist.length)
+                value = intHist[i];
+
+            for (int k = maxBits - 1; k >= 0; k--)
+            {
+                if (firstEmpty && arrayIndex == 0)
+                    byteArray[arrayIndex++] = nextByte;
+                if (((value >> k) & andByte) == 1)
+                    nextByte |= (1 << bitPos);
+                bitPos--;
+
+                if (bitPos < 0)
+                {
+                    byteArray[arrayIndex++] = nextByte;
+                    bitPos = 7;
+                    nextByte = 0x00;
+                }
+                if (arrayIndex == bytesNeeded)
+                {
+                    byteMatrix[matrixIndex++] = byteArray;
+                    byteArray = new byte[bytesNeeded];
+                    arrayIndex = 0;
+
+                    if (matrixIndex == matrixSize)
+                        isDone = true;
+
+                    if (skipBits > 8)
+                        bitPos = (16 - skipBits) - 1;
+                    else if (skipBits == 8 || skipBits == 0)
+                        bitPos = 7;
+                    else
+                        bitPos = (8 - skipBits) - 1;
+                }
+            }
+            i++;
+        }
+        return byteMatrix;
+    }
+
+    @Test
+    public void packBytes_matchesBaselineFor1024BitKey() throws Exception
+    {
+        for (long seed = 0; seed < 5; seed++)
+        {
+            int[] values = histogram(VALUES, BIN_BITS, seed);
+            byte[][] expected = baselinePack(values, 1024, BIN_BITS);
+
+            // JavaLBP packs into number_of_bits - 1 bits, Authenticate into getPlaintextBits() (1022
+            // or 1023 for a 1024 bit n) with (plaintextBits + 8) / 8 bytes per plaintext
+            for (int plaintextBits = 1022; plaintextBits <= 1023; plaintextBits++)
+            {
+                BitPacker packer = new BitPacker(plaintextBits, BIN_BITS);
+                byte[][] actual = packer.packBytes(values, (plaintextBits + 8) / 8);
+                assertEquals(expected.length, actual.length);
+                for (int i = 0; i < expected.length; i++)
+                {
+                    assertArrayEquals("plaintext " + i + " of " + plaintextBits + " bits", expected[i], actual[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pack_matchesPackBytes() throws Exception
+    {
+        int[] values = histogram(VALUES, BIN_BITS, 7);
+        BitPacker packer = new BitPacker(1023, BIN_BITS);
+        BigInteger[] plaintexts = packer.pack(values);
+        byte[][] bytes = packer.packBytes(values, 128);
+        assertEquals(plaintexts.length, bytes.length);
+        for (int i = 0; i < plaintexts.length; i++)
+        {
+            assertEquals(new BigInteger(1, bytes[i]), plaintexts[i]);
+            assertTrue(plaintexts[i].bitLength() <= 1023);
+        }
+    }
+
+    @Test
+    public void unpack_returnsPackedValuesForEverySize() throws Exception
+    {
+        int[] plaintextSizes = {63, 64, 65, 127, 511, 1022, 1023, 2047};
+        for (int bits = 1; bits <= 32; bits++)
+        {
+            for (int s = 0; s < plaintextSizes.length; s++)
+            {
+                int plaintextBits = plaintextSizes[s];
+                if (bits > plaintextBits)
+                    continue;
+
+                BitPacker packer = new BitPacker(plaintextBits, bits, 0);
+                int[] values = histogram(101, bits, bits * 100 + s);
+                values[0] = (int) ((1L << bits) - 1);
+
+                long[] unpacked = packer.unpack(packer.pack(values), values.length);
+                for (int i = 0; i < values.length; i++)
+                {
+                    assertEquals(bits + " bit values in " + plaintextBits + " bits", values[i] & 0xFFFFFFFFL, unpacked[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void headroom_keepsSlotSumsSeparate() throws Exception
+    {
+        int templates = 5;
+        BitPacker packer = new BitPacker(1023, BIN_BITS, BitPacker.headroomFor(templates));
+
+        BigInteger[] sum = null;
+        long[] expected = new long[VALUES];
+        for (int t = 0; t < templates; t++)
+        {
+            int[] values = histogram(VALUES, BIN_BITS, 50 + t);
+            BigInteger[] plaintexts = packer.pack(values);
+            if (sum == null)
+                sum = plaintexts;
+            else
+            {
+                for (int i = 0; i < sum.length; i++)
+                {
+                    sum[i] = sum[i].add(plaintexts[i]);
+                }
+            }
+            for (int i = 0; i < VALUES; i++)
+            {
+                expected[i] += values[i];
+            }
+        }
+
+        assertArrayEquals(expected, packer.unpack(sum, VALUES));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pack_rejectsValuesWiderThanTheSlot() throws Exception
+    {
+        new BitPacker(1023, 4, 0).pack(new int[]{16});
+    }
+}
@@ -0,0 +1,151 @@
+package mst.nsh9b3.uface;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decrypts the results of the batch operations (Montgomery's trick in negate() and the
+ * simultaneous exponentiation in productOfPowers()) and compares them with the same sums computed
+ * on the plaintexts, for plain Paillier and Damgard-Jurik with s=2.
+ */
+public class HomomorphicOperationsTest
+{
+    // Small keys keep the tests fast, every path works the same way at any size
+    private static final int BITS = 512;
+
+    private static String[] privateKey;
+
+    @BeforeClass
+    public static void createKey() throws Exception
+    {
+        privateKey = new PaillierEncryption(BITS, 64).getPrivateKey();
+    }
+
+    /**
+     * @return PaillierEncryption a new copy of the shared key using plaintexts in Z_{n^s}
+     */
+    private static PaillierEncryption key(int s)
+    {
+        PaillierEncryption paillier = new PaillierEncryption(privateKey[0], privateKey[1], privateKey[2], privateKey[3], privateKey[4]);
+        paillier.setDamgardJurik(s);
+        return paillier;
+    }
+
+    /**
+     * @return BigInteger[] count plaintexts starting with 0, 1 and n^s - 1, then random values
+     */
+    private static BigInteger[] messages(PaillierEncryption paillier, int count, long seed)
+    {
+        BigInteger modulus = paillier.getPlaintextModulus();
+        Random random = new Random(seed);
+        BigInteger[] values = new BigInteger[count];
+        for (int i = 0; i < count; i++)
+        {
+            values[i] = new BigInteger(modulus.bitLength() + 8, random).mod(modulus);
+        }
+        BigInteger[] edges = {BigInteger.ZERO, BigInteger.ONE, modulus.subtract(BigInteger.ONE)};
+        System.arraycopy(edges, 0, values, 0, Math.min(edges.length, count));
+        return values;
+    }
+
+    private static BigInteger[] encrypt(PaillierEncryption paillier, BigInteger[] messages) throws Exception
+    {
+        BigInteger[] c = new BigInteger[messages.length];
+        for (int i = 0; i < messages.length; i++)
+        {
+            c[i] = paillier.Encryption(messages[i]);
+        }
+        return c;
+    }
+
+    @Test
+    public void negate_decryptsToMinusEveryMessage() throws Exception
+    {
+        for (int s = 1; s <= 2; s++)
+        {
+            PaillierEncryption paillier = key(s);
+            HomomorphicOperations operations = new HomomorphicOperations(paillier);
+            BigInteger modulus = paillier.getPlaintextModulus();
+
+            int[] lengths = {1, 2, 7};
+            for (int l = 0; l < lengths.length; l++)
+            {
+                String name = "s=" + s + " length " + lengths[l];
+                BigInteger[] m = messages(paillier, lengths[l], 10 * s + l);
+                BigInteger[] c = encrypt(paillier, m);
+
+                BigInteger[] negated = operations.negate(c);
+                assertEquals(name, c.length, negated.length);
+                for (int i = 0; i < c.length; i++)
+                {
+                    assertEquals(name + ": element " + i, m[i].negate().mod(modulus), paillier.Decryption(negated[i]));
+                    assertEquals(name + ": element " + i, operations.negate(c[i]), negated[i]);
+                }
+            }
+            assertEquals(0, operations.negate(new BigInteger[0]).length);
+        }
+    }
+
+    @Test
+    public void productOfPowers_decryptsToTheWeightedSum() throws Exception
+    {
+        for (int s = 1; s <= 2; s++)
+        {
+            PaillierEncryption paillier = key(s);
+            HomomorphicOperations operations = new HomomorphicOperations(paillier);
+            BigInteger modulus = paillier.getPlaintextModulus();
+
+            BigInteger[] m = messages(paillier, 6, 20 + s);
+            BigInteger[] c = encrypt(paillier, m);
+
+            // Zero weights, exponents from 1 to 700 bits in the same row, negative weights and a row of zeros
+            Random random = new Random(s);
+            BigInteger[][] weights = {
+                    {BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(3), new BigInteger(64, random), new BigInteger(700, random), BigInteger.ZERO},
+                    {BigInteger.valueOf(-1), BigInteger.ZERO, new BigInteger(200, random).negate(), BigInteger.valueOf(255), BigInteger.ONE, new BigInteger(33, random)},
+                    {BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO},
+                    {BigInteger.valueOf(2), BigInteger.valueOf(2), BigInteger.valueOf(2), BigInteger.valueOf(2), BigInteger.valueOf(2), BigInteger.valueOf(2)}
+            };
+
+            BigInteger[] products = operations.productOfPowers(c, weights);
+            assertEquals(weights.length, products.length);
+            for (int row = 0; row < weights.length; row++)
+            {
+                BigInteger expected = BigInteger.ZERO;
+                for (int i = 0; i < m.length; i++)
+                {
+                    expected = expected.add(weights[row][i].multiply(m[i]));
+                }
+                expected = expected.mod(modulus);
+
+                String name = "s=" + s + " row " + row;
+                assertEquals(name, expected, paillier.Decryption(products[row]));
+                assertEquals(name + " single row", expected, paillier.Decryption(operations.productOfPowers(c, weights[row])));
+            }
+        }
+    }
+
+    @Test
+    public void productOfPowers_handlesOneCiphertext() throws Exception
+    {
+        for (int s = 1; s <= 2; s++)
+        {
+            PaillierEncryption paillier = key(s);
+            HomomorphicOperations operations = new HomomorphicOperations(paillier);
+            BigInteger m = messages(paillier, 3, s)[2];
+            BigInteger[] c = {paillier.Encryption(m)};
+
+            BigInteger[] weights = {BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(-5), new BigInteger(1000, new Random(s))};
+            for (int k = 0; k < weights.length; k++)
+            {
+                BigInteger expected = weights[k].multiply(m).mod(paillier.getPlaintextModulus());
+                assertEquals("s=" + s + " weight " + k, expected, paillier.Decryption(operations.productOfPowers(c, new BigInteger[]{weights[k]})));
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package mst.nsh9b3.uface;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through every encryption path (plain, CRT, Damgard-Jurik, fixed base, Montgomery and
+ * the binary key files) with small keys, so a change to one of them cannot silently break decryption.
+ */
+public class PaillierEncryptionTest
+{
+    // Small keys keep the tests fast, every path works the same way at any size
+    private static final int BITS = 512;
+
+    private static BigInteger p;
+    private static BigInteger q;
+    private static PaillierEncryption generated;
+
+    @BeforeClass
+    public static void createKeys() throws Exception
+    {
+        SecureRandom random = new SecureRandom();
+        p = BigInteger.probablePrime(BITS / 2, random);
+        do
+        {
+            q = BigInteger.probablePrime(BITS / 2, random);
+        } while (q.equals(p));
+
+        generated = new PaillierEncryption(BITS, 64);
+    }
+
+    /**
+     * @return PaillierEncryption a new CRT key from the shared primes, with g = n + 1
+     */
+    private static PaillierEncryption crtKey()
+    {
+        return new PaillierEncryption(p, q, p.multiply(q).add(BigInteger.ONE));
+    }
+
+    /**
+     * @return BigInteger[] 0, 1, a random value and n^s - 1 for the key
+     */
+    private static BigInteger[] messages(PaillierEncryption paillier, long seed)
+    {
+        BigInteger modulus = paillier.getPlaintextModulus();
+        BigInteger random = new BigInteger(modulus.bitLength() + 8, new Random(seed)).mod(modulus);
+        return new BigInteger[]{BigInteger.ZERO, BigInteger.ONE, random, modulus.subtract(BigInteger.ONE)};
+    }
+
+    /**
+     * Encrypts each message with encryptor and checks that decryptor gives it back
+     */
+    private static void assertRoundTrip(String name, PaillierEncryption encryptor, PaillierEncryption decryptor) throws Exception
+    {
+        BigInteger[] values = messages(encryptor, name.hashCode());
+        for (int i = 0; i < values.length; i++)
+        {
+            BigInteger c = encryptor.Encryption(values[i]);
+            assertTrue(name + ": ciphertext below the modulus", c.compareTo(encryptor.getCiphertextModulus()) < 0);
+            assertEquals(name + ": message " + i, values[i], decryptor.Decryption(c));
+        }
+    }
+
+    private static byte[] write(PaillierEncryption paillier, boolean includePrivateKey, boolean includeTables) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        paillier.writeKey(out, includePrivateKey, includeTables);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static PaillierEncryption read(byte[] bytes) throws IOException
+    {
+        return PaillierEncryption.readKey(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void generatedKey_roundTrips() throws Exception
+    {
+        assertTrue(generated.isCRT());
+        assertTrue(generated.isGNPlusOne());
+        assertRoundTrip("generated", generated, generated);
+    }
+
+    @Test
+    public void crtAndPlainDecryption_agree() throws Exception
+    {
+        PaillierEncryption crt = crtKey();
+        PaillierEncryption plain = new PaillierEncryption(crt.getPrivateKey()[0], crt.getPrivateKey()[1],
+                crt.getPrivateKey()[2], crt.getPrivateKey()[3], crt.getPrivateKey()[4]);
+        assertTrue(crt.isCRT());
+        assertFalse(plain.isCRT());
+
+        assertRoundTrip("crt", crt, crt);
+        assertRoundTrip("plain", plain, plain);
+        assertRoundTrip("crt to plain", crt, plain);
+        assertRoundTrip("plain to crt", plain, crt);
+    }
+
+    @Test
+    public void publicKey_encryptsForThePrivateKey() throws Exception
+    {
+        PaillierEncryption privateKey = crtKey();
+        PaillierEncryption publicKey = PaillierEncryption.fromPublicKey(privateKey.getPublicKey());
+        assertEquals(privateKey.getFingerprint(), publicKey.getFingerprint());
+        assertRoundTrip("public", publicKey, privateKey);
+    }
+
+    @Test
+    public void damgardJurik_roundTripsForS2AndS3() throws Exception
+    {
+        for (int s = 2; s <= 3; s++)
+        {
+            PaillierEncryption privateKey = crtKey();
+            privateKey.setDamgardJurik(s);
+            assertEquals(p.multiply(q).pow(s), privateKey.getPlaintextModulus());
+            assertEquals(p.multiply(q).pow(s + 1), privateKey.getCiphertextModulus());
+
+            PaillierEncryption publicKey = PaillierEncryption.fromPublicKey(privateKey.getPublicKey());
+            assertEquals(s, publicKey.getS());
+            assertRoundTrip("s=" + s, privateKey, privateKey);
+            assertRoundTrip("public s=" + s, publicKey, privateKey);
+        }
+    }
+
+    @Test
+    public void fixedBase_roundTripsThroughThePublicKey() throws Exception
+    {
+        for (int s = 1; s <= 2; s++)
+        {
+            PaillierEncryption privateKey = crtKey();
+            privateKey.setDamgardJurik(s);
+            BigInteger h = privateKey.createFixedBase();
+
+            PaillierEncryption publicKey = PaillierEncryption.fromPublicKey(privateKey.getPublicKey());
+            assertEquals(h, publicKey.getFixedBase());
+            assertRoundTrip("fixed base s=" + s, publicKey, privateKey);
+            privateKey.releaseCaches();
+        }
+    }
+
+    @Test
+    public void montgomery_roundTrips() throws Exception
+    {
+        PaillierEncryption crt = crtKey();
+        crt.setMontgomery(true);
+        assertRoundTrip("montgomery crt", crt, crt);
+
+        PaillierEncryption damgardJurik = crtKey();
+        damgardJurik.setDamgardJurik(2);
+        damgardJurik.setMontgomery(true);
+        assertRoundTrip("montgomery s=2", damgardJurik, damgardJurik);
+
+        PaillierEncryption publicKey = PaillierEncryption.fromPublicKey(crt.getPublicKey());
+        publicKey.setMontgomery(true);
+        assertRoundTrip("montgomery public", publicKey, crt);
+        crt.releaseCaches();
+        damgardJurik.releaseCaches();
+    }
+
+    @Test
+    public void encryptAll_matchesDecryption() throws Exception
+    {
+        PaillierEncryption privateKey = crtKey();
+        privateKey.createFixedBase();
+        PaillierEncryption publicKey = PaillierEncryption.fromPublicKey(privateKey.getPublicKey());
+
+        BigInteger[] values = new BigInteger[9];
+        Random random = new Random(3);
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = new BigInteger(BITS + 8, random).mod(publicKey.getPlaintextModulus());
+        }
+        values[0] = BigInteger.ZERO;
+        values[values.length - 1] = publicKey.getPlaintextModulus().subtract(BigInteger.ONE);
+
+        BigInteger[] ciphertexts = publicKey.encryptAll(values, 3);
+        for (int i = 0; i < values.length; i++)
+        {
+            assertEquals(values[i], privateKey.Decryption(ciphertexts[i]));
+        }
+        privateKey.releaseCaches();
+    }
+
+    @Test(expected = Exception.class)
+    public void encryption_rejectsThePlaintextModulus() throws Exception
+    {
+        PaillierEncryption paillier = crtKey();
+        paillier.Encryption(paillier.getPlaintextModulus());
+    }
+
+    @Test
+    public void writeKey_readKeyRoundTripsEveryCombination() throws Exception
+    {
+        for (int s = 1; s <= 2; s++)
+        {
+            PaillierEncryption original = crtKey();
+            original.setDamgardJurik(s);
+            original.createFixedBase();
+
+            for (int privateKey = 0; privateKey < 2; privateKey++)
+            {
+                for (int tables = 0; tables < 2; tables++)
+                {
+                    String name = "s=" + s + " private " + (privateKey == 1) + " tables " + (tables == 1);
+                    byte[] withTables = write(original, privateKey == 1, tables == 1);
+                    PaillierEncryption loaded = read(withTables);
+
+                    assertEquals(name, original.getFingerprint(), loaded.getFingerprint());
+                    assertEquals(name, s, loaded.getS());
+                    assertEquals(name, original.getFixedBase(), loaded.getFixedBase());
+                    assertRoundTrip(name + " loaded public", loaded, original);
+
+                    if (privateKey == 1)
+                    {
+                        assertEquals(name, s == 1, loaded.isCRT());
+                        assertRoundTrip(name + " loaded private", original, loaded);
+                    } else
+                    {
+                        try
+                        {
+                            loaded.Decryption(original.Encryption(BigInteger.ONE));
+                            throw new AssertionError(name + ": a public key decrypted");
+                        } catch (Exception expected)
+                        {
+                            // A public key has no lambda to decrypt with
+                        }
+                    }
+
+                    // Without the table the file only holds the key, so it is shorter
+                    if (tables == 1)
+                        assertTrue(name, withTables.length > write(original, privateKey == 1, false).length);
+                }
+            }
+            original.releaseCaches();
+        }
+    }
+
+    @Test
+    public void writeKey_skipsTheTableWithoutAFixedBase() throws Exception
+    {
+        PaillierEncryption original = crtKey();
+        PaillierEncryption loaded = read(write(original, true, true));
+        assertNull(loaded.getFixedBase());
+        assertRoundTrip("no fixed base", loaded, loaded);
+    }
+
+    @Test(expected = IOException.class)
+    public void readKey_rejectsACorruptedTable() throws Exception
+    {
+        PaillierEncryption original = crtKey();
+        original.createFixedBase();
+        byte[] bytes = write(original, false, true);
+        original.releaseCaches();
+
+        // The last bytes are the hash of the table
+        bytes[bytes.length - 40] ^= 1;
+        read(bytes);
+    }
+}
@@ -0,0 +1,173 @@
+package mst.nsh9b3.uface;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that the histograms SlidingLBP updates as the window moves and the frame changes are
+ * exactly those of counting the whole window again, for every kind of operator.
+ */
+public class SlidingLBPTest
+{
+    // Image and window sizes, the window is smaller than the image in both directions
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 160;
+    private static final int WINDOW_WIDTH = 96;
+    private static final int WINDOW_HEIGHT = 80;
+
+    private static LBPOperator operator(int kind)
+    {
+        switch (kind)
+        {
+            case 0:
+                return new BasicLBP();
+            case 1:
+                return new CircularLBP(8, 2);
+            default:
+                return new MultiBlockLBP(3);
+        }
+    }
+
+    private static LBPConfig config(int kind)
+    {
+        LBPConfig config = new LBPConfig(4, 3);
+        config.setOverlap(2);
+        config.setOperator(operator(kind));
+        return config;
+    }
+
+    /**
+     * Counts every section of the window at (x, y) from scratch, skipping pixels without all of
+     * their neighbors in the image
+     */
+    private static int[] reference(int kind, byte[] pixels, int x, int y)
+    {
+        LBPConfig config = config(kind);
+        LBPOperator operator = config.getOperator();
+        operator.prepare(pixels, WIDTH, HEIGHT);
+        int border = operator.getBorder();
+        int[] table = config.getMapping().getTable();
+        int bins = config.getMapping().getBins();
+        int[] features = new int[config.getCellCount() * bins];
+        int[] codes = new int[WIDTH];
+
+        for (int index = 0; index < config.getCellCount(); index++)
+        {
+            int gridRow = index / config.getGridCols();
+            int gridCol = index % config.getGridCols();
+            int top = Math.max(y + config.cellStart(gridRow, config.getGridRows(), WINDOW_HEIGHT), border);
+            int bottom = Math.min(y + config.cellEnd(gridRow, config.getGridRows(), WINDOW_HEIGHT), HEIGHT - border);
+            int left = Math.max(x + config.cellStart(gridCol, config.getGridCols(), WINDOW_WIDTH), border);
+            int right = Math.min(x + config.cellEnd(gridCol, config.getGridCols(), WINDOW_WIDTH), WIDTH - border);
+
+            for (int row = top; row < bottom; row++)
+            {
+                for (int col = left; col < right; col++)
+                {
+                    operator.computeRow(pixels, WIDTH, row, col, col + 1, codes);
+                    features[index * bins + table[codes[0]]]++;
+                }
+            }
+        }
+        return features;
+    }
+
+    private static void assertMatches(String name, SlidingLBP sliding, int kind, byte[] pixels, int x, int y)
+    {
+        int[] actual = new int[sliding.getFeatureLength()];
+        sliding.getHistogram(actual, 0);
+        assertArrayEquals(name, reference(kind, pixels, x, y), actual);
+    }
+
+    /**
+     * Overwrites a random rectangle of up to size x size pixels, which may cross the image edges
+     */
+    private static void paint(byte[] pixels, Random random, int size)
+    {
+        int left = random.nextInt(WIDTH + size) - size;
+        int top = random.nextInt(HEIGHT + size) - size;
+        int right = left + 1 + random.nextInt(size);
+        int bottom = top + 1 + random.nextInt(size);
+        for (int row = Math.max(top, 0); row < Math.min(bottom, HEIGHT); row++)
+        {
+            for (int col = Math.max(left, 0); col < Math.min(right, WIDTH); col++)
+            {
+                pixels[row * WIDTH + col] = (byte) random.nextInt(256);
+            }
+        }
+    }
+
+    @Test
+    public void moveTo_matchesFullCountAfterRandomMoves() throws Exception
+    {
+        for (int kind = 0; kind < 3; kind++)
+        {
+            Random random = new Random(9 + kind);
+            byte[] pixels = new byte[WIDTH * HEIGHT];
+            random.nextBytes(pixels);
+
+            SlidingLBP sliding = new SlidingLBP(config(kind), WINDOW_WIDTH, WINDOW_HEIGHT);
+            sliding.setFrame(pixels, WIDTH, HEIGHT);
+
+            int x = 50;
+            int y = 40;
+            for (int move = 0; move < 300; move++)
+            {
+                // Mostly small steps, with a jump anywhere every 50 moves
+                x = Math.max(0, Math.min(WIDTH - WINDOW_WIDTH, x + random.nextInt(15) - 7));
+                y = Math.max(0, Math.min(HEIGHT - WINDOW_HEIGHT, y + random.nextInt(15) - 7));
+                if (move % 50 == 49)
+                {
+                    x = random.nextInt(WIDTH - WINDOW_WIDTH + 1);
+                    y = random.nextInt(HEIGHT - WINDOW_HEIGHT + 1);
+                }
+
+                sliding.moveTo(x, y);
+                assertMatches("operator " + kind + " move " + move, sliding, kind, pixels, x, y);
+            }
+        }
+    }
+
+    @Test
+    public void setFrame_updatesHistogramsForChangedPixels() throws Exception
+    {
+        for (int kind = 0; kind < 3; kind++)
+        {
+            Random random = new Random(100 + kind);
+            byte[] pixels = new byte[WIDTH * HEIGHT];
+            random.nextBytes(pixels);
+
+            SlidingLBP sliding = new SlidingLBP(config(kind), WINDOW_WIDTH, WINDOW_HEIGHT);
+            sliding.setFrame(pixels, WIDTH, HEIGHT);
+            int x = 60;
+            int y = 30;
+            sliding.moveTo(x, y);
+
+            for (int frame = 0; frame < 60; frame++)
+            {
+                // The same array is changed in place like a reused camera buffer
+                if (frame % 20 == 19)
+                    random.nextBytes(pixels);
+                else if (frame % 7 != 6)
+                {
+                    for (int i = random.nextInt(4); i > 0; i--)
+                    {
+                        paint(pixels, random, 1 + random.nextInt(12));
+                    }
+                }
+                sliding.setFrame(pixels, WIDTH, HEIGHT);
+
+                if (frame % 3 == 2)
+                {
+                    x = Math.max(0, Math.min(WIDTH - WINDOW_WIDTH, x + random.nextInt(11) - 5));
+                    y = Math.max(0, Math.min(HEIGHT - WINDOW_HEIGHT, y + random.nextInt(11) - 5));
+                }
+                sliding.moveTo(x, y);
+                assertMatches("operator " + kind + " frame " + frame, sliding, kind, pixels, x, y);
+            }
+        }
+    }
+}